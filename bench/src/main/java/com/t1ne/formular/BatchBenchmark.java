@@ -0,0 +1,74 @@
+package com.t1ne.formular;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One formula over a million points: the batch's generated loop, directly and
+ * through Formula, against calling the function per element and against the
+ * same formula written in Java.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+    @Param({"1000000"})
+    public int size;
+
+    private Interpreter interpreter;
+    private FCallable function;
+    private Batch batch;
+    private Formula formula;
+    private double[] x;
+    private double[] y;
+    private double[] result;
+
+    @Setup
+    public void setUp() {
+        interpreter = new Interpreter();
+        interpreter.interpret(Scripts.prepare(interpreter,
+                "func f(x, y) { return 3 * x * x + 2 * x * y - y / 4 + sqrt(x); }\n"));
+        function = (FCallable) Scripts.function(interpreter, "f");
+        batch = Batch.compile(interpreter, function);
+        formula = FormulaR.compile("3 * x * x + 2 * x * y - y / 4 + sqrt(x)");
+        x = new double[size];
+        y = new double[size];
+        for (int i = 0; i < size; i++) {
+            x[i] = i * 0.001;
+            y[i] = size - i;
+        }
+        result = new double[size];
+    }
+
+    @Benchmark
+    public double[] batch() {
+        batch.evaluate(interpreter, new double[][] {x, y}, result);
+        return result;
+    }
+
+    // The same loop through the public API, which allocates the result.
+    @Benchmark
+    public double[] formula() {
+        return formula.evaluate(new String[] {"x", "y"}, new double[][] {x, y});
+    }
+
+    @Benchmark
+    public double[] perElement() {
+        for (int i = 0; i < size; i++) {
+            result[i] = (double) function.call2(interpreter, x[i], y[i]);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public double[] java() {
+        for (int i = 0; i < size; i++) {
+            result[i] = 3 * x[i] * x[i] + 2 * x[i] * y[i] - y[i] / 4 + Math.sqrt(x[i]);
+        }
+        return result;
+    }
+}
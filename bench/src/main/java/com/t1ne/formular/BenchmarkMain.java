@@ -0,0 +1,35 @@
+package com.t1ne.formular;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler always on, so every result has
+ * both time and gc.alloc.rate.norm (bytes allocated per operation).
+ * <pre>
+ *   mvn -f bench/pom.xml package
+ *   java -jar bench/target/benchmarks.jar [jmh options, e.g. Reactive -p variables=1000]
+ * </pre>
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException, IOException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        // Listing and help are handled by JMH's own main, Runner.run() would start the suite instead.
+        if (options.shouldHelp() || options.shouldList() || options.shouldListWithParams()
+                || options.shouldListProfilers() || options.shouldListResultFormats()) {
+            Main.main(args);
+            return;
+        }
+        new Runner(new OptionsBuilder()
+                .parent(options)
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
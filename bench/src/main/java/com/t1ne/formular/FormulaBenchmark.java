@@ -0,0 +1,61 @@
+package com.t1ne.formular;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compile-once, evaluate-many use of the embedding API, against compiling the
+ * formula again for every evaluation, and one formula shared by several threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormulaBenchmark {
+    private static final String SOURCE = "3 * x * x + 2 * x * y - y / 4 + sqrt(x)";
+
+    private Formula formula;
+    private final Map<String, Object> bindings = new HashMap<>();
+    private double x = 0;
+
+    @Setup
+    public void setUp() {
+        formula = FormulaR.compile(SOURCE);
+        bindings.put("y", 2.0);
+    }
+
+    @Benchmark
+    public Object evaluate() {
+        bindings.put("x", x++);
+        return formula.evaluate(bindings);
+    }
+
+    @Benchmark
+    public Object compileAndEvaluate() {
+        bindings.put("x", x++);
+        return FormulaR.compile(SOURCE).evaluate(bindings);
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadBindings {
+        final Map<String, Object> bindings = new HashMap<>();
+        double x = 0;
+
+        @Setup
+        public void setUp() {
+            bindings.put("y", 2.0);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object evaluateShared(ThreadBindings thread) {
+        thread.bindings.put("x", thread.x++);
+        return formula.evaluate(thread.bindings);
+    }
+}
@@ -0,0 +1,89 @@
+package com.t1ne.formular;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole-script execution. The interpreter, its resolved tree and the vm's
+ * compiled script are kept between invocations, so specialized nodes stay warm
+ * like in a long REPL and neither backend is measured compiling.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+    @Param({"tree", "vm"})
+    public String backend;
+
+    private Interpreter interpreter;
+    private VM vm;
+    private Runnable numericLoop;
+    private Runnable fibonacci;
+    private Runnable builtins;
+    private Runnable returns;
+    private Runnable stringDerivative;
+    private Runnable symbolicDerivative;
+
+    @Setup
+    public void setUp() {
+        interpreter = new Interpreter();
+        vm = new VM(interpreter);
+        numericLoop = prepare(Scripts.numericLoop(10_000));
+        fibonacci = prepare(Scripts.fibonacci(20));
+        builtins = prepare(Scripts.builtins(1_000));
+        returns = prepare(Scripts.returns(10_000));
+        stringDerivative = prepare(Scripts.derivatives(1_000, false));
+        symbolicDerivative = prepare(Scripts.derivatives(1_000, true));
+    }
+
+    // Resolves and, for the vm, compiles the script here, so invocations only measure execution.
+    private Runnable prepare(String source) {
+        List<Stmt> statements = Scripts.prepare(interpreter, source);
+        if (backend.equals("vm")) {
+            VMFunction script = vm.compile(statements);
+            return () -> vm.interpret(script);
+        }
+        return () -> interpreter.interpret(statements);
+    }
+
+    @Benchmark
+    public Object numericLoop() {
+        numericLoop.run();
+        return Scripts.global(interpreter, "sum");
+    }
+
+    @Benchmark
+    public Object recursiveCalls() {
+        fibonacci.run();
+        return Scripts.global(interpreter, "result");
+    }
+
+    @Benchmark
+    public Object builtins() {
+        builtins.run();
+        return Scripts.global(interpreter, "result");
+    }
+
+    @Benchmark
+    public Object returnFromLoop() {
+        returns.run();
+        return Scripts.global(interpreter, "result");
+    }
+
+    @Benchmark
+    public Object stringDerivative() {
+        stringDerivative.run();
+        return Scripts.global(interpreter, "result");
+    }
+
+    @Benchmark
+    public Object symbolicDerivative() {
+        symbolicDerivative.run();
+        return Scripts.global(interpreter, "result");
+    }
+}
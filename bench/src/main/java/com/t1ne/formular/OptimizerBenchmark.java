@@ -0,0 +1,30 @@
+package com.t1ne.formular;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OptimizerBenchmark {
+    @Param({"100", "1000"})
+    public int blocks;
+
+    private final Interpreter interpreter = new Interpreter();
+    private List<Stmt> statements;
+
+    @Setup
+    public void setUp() {
+        statements = Scripts.parse(Scripts.large(blocks));
+    }
+
+    @Benchmark
+    public List<Stmt> optimize() {
+        return new Optimizer(interpreter, true, null).optimize(statements);
+    }
+}
@@ -0,0 +1,29 @@
+package com.t1ne.formular;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+    @Param({"100", "1000"})
+    public int blocks;
+
+    private List<Token> tokens;
+
+    @Setup
+    public void setUp() {
+        tokens = new Scanner(Scripts.large(blocks)).scanTokens();
+    }
+
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(tokens).parse();
+    }
+}
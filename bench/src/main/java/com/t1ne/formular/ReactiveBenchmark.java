@@ -0,0 +1,40 @@
+package com.t1ne.formular;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of assigning to the root of n reactive variables, which recomputes
+ * every dependent formula.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReactiveBenchmark {
+    @Param({"10", "100", "1000"})
+    public int variables;
+
+    @Param({"chain", "fan"})
+    public String shape;
+
+    private Interpreter interpreter;
+    private List<Stmt> update;
+
+    @Setup
+    public void setUp() {
+        interpreter = new Interpreter();
+        interpreter.interpret(Scripts.prepare(interpreter, Scripts.reactive(variables, shape.equals("chain"))));
+        update = Scripts.prepare(interpreter, "v0 = v0 + 1;");
+    }
+
+    @Benchmark
+    public Object update() {
+        interpreter.interpret(update);
+        return Scripts.global(interpreter, "v" + (variables - 1));
+    }
+}
@@ -0,0 +1,29 @@
+package com.t1ne.formular;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScannerBenchmark {
+    @Param({"100", "1000"})
+    public int blocks;
+
+    private String source;
+
+    @Setup
+    public void setUp() {
+        source = Scripts.large(blocks);
+    }
+
+    @Benchmark
+    public List<Token> scanTokens() {
+        return new Scanner(source).scanTokens();
+    }
+}
@@ -0,0 +1,128 @@
+package com.t1ne.formular;
+
+import java.util.List;
+
+/**
+ * Generated FormulaR sources shared by the benchmarks and a helper that runs
+ * them through the same front end as FormulaR.run.
+ */
+final class Scripts {
+    private Scripts() {}
+
+    // Mix of declarations, functions, loops and builtin calls, repeated to the requested size.
+    static String large(int blocks) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < blocks; i++) {
+            source.append("// block ").append(i).append('\n')
+                    .append("var a").append(i).append(" = ").append(i).append(".5;\n")
+                    .append("var s").append(i).append(" = \"рядок ").append(i).append("\";\n")
+                    .append("func f").append(i).append("(x, y) {\n")
+                    .append("  if (x >= y) {\n")
+                    .append("    return x * 2 - y / 3;\n")
+                    .append("  } else {\n")
+                    .append("    return pow(x, 2) + sin(y);\n")
+                    .append("  }\n")
+                    .append("}\n")
+                    .append("var i").append(i).append(" = 0;\n")
+                    .append("while (i").append(i).append(" < 10) {\n")
+                    .append("  i").append(i).append(" = i").append(i).append(" + 1;\n")
+                    .append("  a").append(i).append(" = f").append(i).append("(a").append(i)
+                    .append(", i").append(i).append(") + (1 + 2) * 3;\n")
+                    .append("}\n");
+        }
+        return source.toString();
+    }
+
+    static String numericLoop(int iterations) {
+        return "var sum = 0;\n" +
+                "var i = 0;\n" +
+                "while (i < " + iterations + ") {\n" +
+                "  sum = sum + i * 2 - i / 4;\n" +
+                "  i = i + 1;\n" +
+                "}\n";
+    }
+
+    static String fibonacci(int n) {
+        return "func fib(n) {\n" +
+                "  if (n < 2) return n;\n" +
+                "  return fib(n - 1) + fib(n - 2);\n" +
+                "}\n" +
+                "var result = fib(" + n + ");\n";
+    }
+
+    // Returns from inside a loop and nested blocks; the global counter keeps it out of the JIT.
+    static String returns(int calls) {
+        return "var seen = 0;\n" +
+                "func find(limit) {\n" +
+                "  var i = 0;\n" +
+                "  while (i < 100) {\n" +
+                "    seen = seen + 1;\n" +
+                "    if (i >= limit) {\n" +
+                "      {\n" +
+                "        return i;\n" +
+                "      }\n" +
+                "    }\n" +
+                "    i = i + 1;\n" +
+                "  }\n" +
+                "}\n" +
+                "var result = 0;\n" +
+                "var k = 0;\n" +
+                "while (k < " + calls + ") {\n" +
+                "  result = result + find(3);\n" +
+                "  k = k + 1;\n" +
+                "}\n";
+    }
+
+    static String builtins(int iterations) {
+        return "var result = 0;\n" +
+                "var i = 0;\n" +
+                "while (i < " + iterations + ") {\n" +
+                "  result = result + sin(i) + pow(i, 3) + sqrt(i) + diffPolynom(\"3x^3 + 2x^2 - 5x^1\", i);\n" +
+                "  i = i + 1;\n" +
+                "}\n";
+    }
+
+    // The same derivative, either parsed from a string by diffPolynom on every call or built once by diff.
+    static String derivatives(int iterations, boolean symbolic) {
+        String derivative = symbolic ? "diff(p, \"x\")(i)" : "diffPolynom(\"3x^3 + 2x^2 - 5x^1\", i)";
+        return "func p(x) { return 3 * pow(x, 3) + 2 * pow(x, 2) - 5 * x; }\n" +
+                "var result = 0;\n" +
+                "var i = 0;\n" +
+                "while (i < " + iterations + ") {\n" +
+                "  result = result + " + derivative + ";\n" +
+                "  i = i + 1;\n" +
+                "}\n";
+    }
+
+    // n reactive variables, either each depending on the previous one or all on the first.
+    static String reactive(int n, boolean chain) {
+        StringBuilder source = new StringBuilder("var v0 = 1;\n");
+        for (int i = 1; i < n; i++) {
+            source.append("var v").append(i).append(" = ")
+                    .append(chain ? "v" + (i - 1) : "v0").append(" + 1;\n");
+        }
+        return source.toString();
+    }
+
+    static List<Stmt> parse(String source) {
+        List<Token> tokens = new Scanner(source).scanTokens();
+        List<Stmt> statements = new Parser(tokens).parse();
+        if (FormulaR.hadError) throw new IllegalStateException("Benchmark script does not parse");
+        return statements;
+    }
+
+    // Parses, optimizes and resolves a script against the given interpreter, ready to interpret.
+    static List<Stmt> prepare(Interpreter interpreter, String source) {
+        List<Stmt> statements = new Optimizer(interpreter, true, null).optimize(parse(source));
+        new Resolver(interpreter).resolve(statements);
+        return statements;
+    }
+
+    static Object global(Interpreter interpreter, String name) {
+        return interpreter.globals.values[interpreter.globalSlot(name)];
+    }
+
+    static Object function(Interpreter interpreter, String name) {
+        return global(interpreter, Resolver.functionKey(name));
+    }
+}
@@ -0,0 +1,469 @@
+package com.t1ne.formular;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary form of an optimized program, before it is resolved. A file
+ * starts with a header of the format version, the key of the source and a
+ * checksum of the rest, then every distinct lexeme and string once, then the
+ * statements as a pre-order walk of tagged nodes that refer to the strings by
+ * index. Numbers are variable-length, so most nodes take a few bytes.
+ *
+ * A program that holds a value with no binary form, which the optimizer never
+ * produces from a script, can't be encoded and encode() returns null.
+ */
+class AstCodec {
+    static final int MAGIC = 0x46524331; // "FRC1"
+    // Bump whenever the format or the meaning of an optimized tree changes.
+    static final int VERSION = 2;
+
+    private static final int NULL = 0;
+    // Expressions.
+    private static final int ASSIGN = 1;
+    private static final int BINARY = 2;
+    private static final int CALL = 3;
+    private static final int GROUPING = 4;
+    private static final int LITERAL = 5;
+    private static final int UNARY = 6;
+    private static final int VARIABLE = 7;
+    // Statements.
+    private static final int BLOCK = 1;
+    private static final int EXPRESSION = 2;
+    private static final int FUNCTION = 3;
+    private static final int IF = 4;
+    private static final int PRINT = 5;
+    private static final int RETURN = 6;
+    private static final int VAR = 7;
+    private static final int WHILE = 8;
+    // Literal values.
+    private static final int NUMBER = 1;
+    private static final int STRING = 2;
+    private static final int TRUE = 3;
+    private static final int FALSE = 4;
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private AstCodec() {}
+
+    static byte[] encode(byte[] key, List<Stmt> statements) {
+        Encoder encoder = new Encoder();
+        try {
+            encoder.writeInt(statements.size());
+            for (Stmt statement : statements) {
+                encoder.write(statement);
+            }
+        } catch (IllegalArgumentException error) {
+            return null;
+        }
+
+        Encoder contents = new Encoder();
+        contents.writeInt(encoder.strings.size());
+        for (String string : encoder.strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            contents.writeInt(bytes.length);
+            contents.out.write(bytes, 0, bytes.length);
+        }
+        byte[] body = encoder.out.toByteArray();
+        contents.out.write(body, 0, body.length);
+        byte[] rest = contents.out.toByteArray();
+        CRC32 checksum = new CRC32();
+        checksum.update(rest);
+
+        Encoder file = new Encoder();
+        file.writeFixed(MAGIC);
+        file.writeFixed(VERSION);
+        file.out.write(key, 0, key.length);
+        file.writeFixed((int) checksum.getValue());
+        file.out.write(rest, 0, rest.length);
+        return file.out.toByteArray();
+    }
+
+    /**
+     * Decodes a program encoded for the given key. Returns null if the buffer
+     * holds another key, another version of the format or fails its checksum;
+     * one cut short in its header throws a BufferUnderflowException.
+     */
+    static List<Stmt> decode(byte[] key, ByteBuffer in) {
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) return null;
+        byte[] stored = new byte[key.length];
+        in.get(stored);
+        if (!Arrays.equals(stored, key)) return null;
+        int expected = in.getInt();
+        CRC32 checksum = new CRC32();
+        checksum.update(in.duplicate());
+        if ((int) checksum.getValue() != expected) return null;
+
+        Decoder decoder = new Decoder(in);
+        String[] strings = new String[decoder.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[decoder.readInt()];
+            in.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        decoder.strings = strings;
+
+        int count = decoder.readInt();
+        List<Stmt> statements = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            statements.add(decoder.readStmt());
+        }
+        if (in.hasRemaining()) throw new IllegalArgumentException("Trailing bytes");
+        return statements;
+    }
+
+    private static class Encoder implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final List<String> strings = new ArrayList<>();
+        private final Map<String, Integer> indexes = new HashMap<>();
+
+        void writeFixed(int value) {
+            out.write(value >>> 24);
+            out.write(value >>> 16);
+            out.write(value >>> 8);
+            out.write(value);
+        }
+
+        // Seven bits at a time, lowest first; the high bit marks that more follow.
+        void writeInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        private void writeString(String string) {
+            Integer index = indexes.get(string);
+            if (index == null) {
+                index = strings.size();
+                strings.add(string);
+                indexes.put(string, index);
+            }
+            writeInt(index);
+        }
+
+        private void writeToken(Token token) {
+            out.write(token.type.ordinal());
+            writeString(token.lexeme);
+            writeValue(token.literal);
+            writeInt(token.line);
+        }
+
+        private void writeTokens(List<Token> tokens) {
+            writeInt(tokens.size());
+            for (Token token : tokens) {
+                writeToken(token);
+            }
+        }
+
+        private void writeValue(Object value) {
+            if (value == null) {
+                out.write(NULL);
+            } else if (value instanceof Double) {
+                out.write(NUMBER);
+                long bits = Double.doubleToRawLongBits((double) value);
+                writeFixed((int) (bits >>> 32));
+                writeFixed((int) bits);
+            } else if (value instanceof String) {
+                out.write(STRING);
+                writeString((String) value);
+            } else if (value instanceof Boolean) {
+                out.write((boolean) value ? TRUE : FALSE);
+            } else {
+                throw new IllegalArgumentException("No binary form for " + value);
+            }
+        }
+
+        void write(Expr expr) {
+            if (expr == null) {
+                out.write(NULL);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        void write(Stmt stmt) {
+            if (stmt == null) {
+                out.write(NULL);
+            } else {
+                stmt.accept(this);
+            }
+        }
+
+        private void writeStmts(List<Stmt> statements) {
+            writeInt(statements.size());
+            for (Stmt statement : statements) {
+                write(statement);
+            }
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            out.write(ASSIGN);
+            writeToken(expr.name);
+            write(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            out.write(BINARY);
+            write(expr.left);
+            writeToken(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            out.write(CALL);
+            write(expr.callee);
+            writeToken(expr.paren);
+            writeInt(expr.arguments.size());
+            for (Expr argument : expr.arguments) {
+                write(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            out.write(GROUPING);
+            write(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            out.write(LITERAL);
+            writeValue(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            out.write(UNARY);
+            writeToken(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            out.write(VARIABLE);
+            writeToken(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            out.write(BLOCK);
+            writeStmts(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            out.write(EXPRESSION);
+            write(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            out.write(FUNCTION);
+            writeToken(stmt.name);
+            writeTokens(stmt.params);
+            writeStmts(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            out.write(IF);
+            write(stmt.condition);
+            write(stmt.thenBranch);
+            write(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            out.write(PRINT);
+            writeToken(stmt.keyword);
+            write(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            out.write(RETURN);
+            writeToken(stmt.keyword);
+            write(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            out.write(VAR);
+            writeToken(stmt.name);
+            write(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            out.write(WHILE);
+            writeToken(stmt.keyword);
+            write(stmt.condition);
+            write(stmt.body);
+            return null;
+        }
+    }
+
+    private static class Decoder {
+        private final ByteBuffer in;
+        String[] strings;
+
+        Decoder(ByteBuffer in) {
+            this.in = in;
+        }
+
+        int readInt() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = in.get() & 0xFF;
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IllegalArgumentException("Malformed number");
+        }
+
+        private String readString() {
+            int index = readInt();
+            if (index >= strings.length) throw new IllegalArgumentException("No string " + index);
+            return strings[index];
+        }
+
+        private Token readToken() {
+            int type = in.get() & 0xFF;
+            if (type >= TYPES.length) throw new IllegalArgumentException("No token type " + type);
+            String lexeme = readString();
+            Object literal = readValue();
+            return new Token(TYPES[type], lexeme, literal, readInt());
+        }
+
+        private List<Token> readTokens() {
+            int count = readInt();
+            List<Token> tokens = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                tokens.add(readToken());
+            }
+            return tokens;
+        }
+
+        private Object readValue() {
+            int tag = in.get();
+            switch (tag) {
+                case NULL: return null;
+                case NUMBER: return Double.longBitsToDouble(in.getLong());
+                case STRING: return readString();
+                case TRUE: return true;
+                case FALSE: return false;
+            }
+            throw new IllegalArgumentException("No value tag " + tag);
+        }
+
+        private List<Expr> readExprs() {
+            int count = readInt();
+            List<Expr> exprs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                exprs.add(readExpr());
+            }
+            return exprs;
+        }
+
+        private List<Stmt> readStmts() {
+            int count = readInt();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                statements.add(readStmt());
+            }
+            return statements;
+        }
+
+        Expr readExpr() {
+            int tag = in.get();
+            switch (tag) {
+                case NULL: return null;
+                case ASSIGN: {
+                    Token name = readToken();
+                    return new Expr.Assign(name, readExpr());
+                }
+                case BINARY: {
+                    Expr left = readExpr();
+                    Token operator = readToken();
+                    return new Expr.Binary(left, operator, readExpr());
+                }
+                case CALL: {
+                    Expr callee = readExpr();
+                    Token paren = readToken();
+                    return new Expr.Call(callee, paren, readExprs());
+                }
+                case GROUPING: return new Expr.Grouping(readExpr());
+                case LITERAL: return new Expr.Literal(readValue());
+                case UNARY: {
+                    Token operator = readToken();
+                    return new Expr.Unary(operator, readExpr());
+                }
+                case VARIABLE: return new Expr.Variable(readToken());
+            }
+            throw new IllegalArgumentException("No expression tag " + tag);
+        }
+
+        Stmt readStmt() {
+            int tag = in.get();
+            switch (tag) {
+                case NULL: return null;
+                case BLOCK: return new Stmt.Block(readStmts());
+                case EXPRESSION: return new Stmt.Expression(readExpr());
+                case FUNCTION: {
+                    Token name = readToken();
+                    List<Token> params = readTokens();
+                    return new Stmt.Function(name, params, readStmts());
+                }
+                case IF: {
+                    Expr condition = readExpr();
+                    Stmt thenBranch = readStmt();
+                    return new Stmt.If(condition, thenBranch, readStmt());
+                }
+                case PRINT: {
+                    Token keyword = readToken();
+                    return new Stmt.Print(keyword, readExpr());
+                }
+                case RETURN: {
+                    Token keyword = readToken();
+                    return new Stmt.Return(keyword, readExpr());
+                }
+                case VAR: {
+                    Token name = readToken();
+                    return new Stmt.Var(name, readExpr());
+                }
+                case WHILE: {
+                    Token keyword = readToken();
+                    Expr condition = readExpr();
+                    return new Stmt.While(keyword, condition, readStmt());
+                }
+            }
+            throw new IllegalArgumentException("No statement tag " + tag);
+        }
+    }
+}
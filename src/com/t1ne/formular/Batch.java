@@ -0,0 +1,606 @@
+package com.t1ne.formular;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Evaluates a single numeric expression over columns of doubles, one column
+ * per parameter. The whole expression is generated as one loop over the
+ * elements, in bytecode the way Jit compiles functions, so HotSpot optimizes
+ * and vectorizes it like a hand-written Java loop. Should the JVM refuse the
+ * generated class, or in a context that compiles nothing, the expression runs
+ * as a tree of column kernels instead that work on chunks of CHUNK elements at
+ * a time: every operator is one plain loop over arrays. Builtins are bound
+ * when the batch is compiled; globals are read once per evaluate() call.
+ *
+ * A batch never changes after it is compiled: the chunk buffers and the values
+ * of the globals belong to each evaluate() call, so any number of threads can
+ * evaluate the same batch, each with a context of its own.
+ */
+class Batch {
+    // Elements per pass, small enough for the intermediate buffers to stay in cache.
+    static final int CHUNK = 1024;
+
+    private final int arity;
+    private final Node root;
+    private final List<Global> globals = new ArrayList<>();
+    // Intermediate buffers a call needs, one per kernel that keeps an operand aside.
+    private int buffers = 0;
+    // The expression as one generated loop, null to run the kernels.
+    private final Loop loop;
+
+    private Batch(Interpreter interpreter, List<String> params, Expr expr, String name) {
+        this.arity = params.size();
+        this.root = node(interpreter, params, expr, name);
+        this.loop = interpreter.compiles() ? Loop.generate(root, arity, globals.size()) : null;
+    }
+
+    // A batch of a function whose body is a single return of a numeric expression.
+    static Batch compile(Interpreter interpreter, FCallable function) {
+        if (function instanceof FFunction) return compile(interpreter, ((FFunction) function).declaration);
+        if (function instanceof JitFunction) return compile(interpreter, ((JitFunction) function).function.declaration);
+        if (function instanceof VMFunction && ((VMFunction) function).declaration != null) {
+            return compile(interpreter, ((VMFunction) function).declaration);
+        }
+        throw new IllegalArgumentException("Not a user function: " + function);
+    }
+
+    private static Batch compile(Interpreter interpreter, Stmt.Function function) {
+        String name = "Function " + function.name.lexeme;
+        if (function.body.size() != 1 || !(function.body.get(0) instanceof Stmt.Return)
+                || ((Stmt.Return) function.body.get(0)).value == null) {
+            throw new IllegalArgumentException(name + " is not a single return statement");
+        }
+        List<String> params = new ArrayList<>();
+        for (Token param : function.params) {
+            params.add(param.lexeme);
+        }
+        return new Batch(interpreter, params, ((Stmt.Return) function.body.get(0)).value, name);
+    }
+
+    /**
+     * A batch of a resolved expression in which the given globals are the
+     * columns. The interpreter is any context of the program the expression
+     * belongs to.
+     */
+    static Batch compile(Interpreter interpreter, List<String> columns, Expr expr) {
+        return new Batch(interpreter, columns, expr, "Formula");
+    }
+
+    int arity() {
+        return arity;
+    }
+
+    double[] evaluate(Interpreter context, double[]... columns) {
+        double[] result = new double[columns.length == 0 ? 0 : columns[0].length];
+        evaluate(context, columns, result);
+        return result;
+    }
+
+    // Fills result[i] with the formula applied to the i-th element of every column, globals come from context.
+    void evaluate(Interpreter context, double[][] columns, double[] result) {
+        if (columns.length != arity) {
+            throw new IllegalArgumentException("Expected " + arity + " columns but got " + columns.length);
+        }
+        for (double[] column : columns) {
+            if (column.length != result.length) throw new IllegalArgumentException("Columns differ in length");
+        }
+        if (loop != null) {
+            double[] values = new double[globals.size()];
+            for (Global global : globals) {
+                values[global.index] = global.read(context);
+            }
+            loop.run(columns, values, result, result.length);
+            return;
+        }
+
+        Scratch scratch = new Scratch(columns, buffers, Math.min(CHUNK, result.length), globals.size());
+        for (Global global : globals) {
+            scratch.globals[global.index] = global.read(context);
+        }
+
+        double[] chunk = result.length <= CHUNK ? result : new double[CHUNK];
+        for (int from = 0; from < result.length; from += CHUNK) {
+            int length = Math.min(CHUNK, result.length - from);
+            root.evaluate(scratch, from, length, chunk);
+            if (chunk != result) System.arraycopy(chunk, 0, result, from, length);
+        }
+    }
+
+    private Node node(Interpreter interpreter, List<String> params, Expr expr, String name) {
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) expr).value;
+            if (value instanceof Double) return new Constant((double) value);
+        } else if (expr instanceof Expr.Grouping) {
+            return node(interpreter, params, ((Expr.Grouping) expr).expression, name);
+        } else if (expr instanceof Expr.Variable) {
+            Token variable = ((Expr.Variable) expr).name;
+            int index = params.lastIndexOf(variable.lexeme);
+            if (index >= 0) return new Parameter(index);
+            Global global = new Global(variable, interpreter.globalSlot(variable.lexeme), globals.size());
+            globals.add(global);
+            return global;
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            if (unary.operator.type == TokenType.MINUS) return new Negate(node(interpreter, params, unary.right, name));
+        } else if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            switch (binary.operator.type) {
+                case PLUS:
+                case MINUS:
+                case STAR:
+                case SLASH:
+                    Node left = node(interpreter, params, binary.left, name);
+                    Node right = node(interpreter, params, binary.right, name);
+                    return new Binary(binary.operator.type, left, right,
+                            right.isScalar() || left.isScalar() ? -1 : buffers++);
+            }
+        } else if (expr instanceof Expr.Call) {
+            Node call = call(interpreter, params, (Expr.Call) expr, name);
+            if (call != null) return call;
+        }
+        throw new IllegalArgumentException(name + " is not a numeric formula");
+    }
+
+    private Node call(Interpreter interpreter, List<String> params, Expr.Call call, String name) {
+        if (!(call.callee instanceof Expr.Variable)) return null;
+        String callee = ((Expr.Variable) call.callee).name.lexeme;
+        FCallable builtin = interpreter.builtins.get(callee);
+        if (builtin == null || builtin.argsNum() != call.arguments.size()) return null;
+        if (interpreter.globals.values[interpreter.globalSlot(Resolver.functionKey(callee))] != builtin) return null;
+        if (params.contains(callee)) return null;
+
+        Node argument = node(interpreter, params, call.arguments.get(0), name);
+        switch (callee) {
+            case "sin": return new Unary(Unary.SIN, argument);
+            case "cos": return new Unary(Unary.COS, argument);
+            case "sqrt": return new Unary(Unary.SQRT, argument);
+            case "kvadrat": return new Power(argument, new Constant(2), buffers++);
+            case "pow": return new Power(argument, node(interpreter, params, call.arguments.get(1), name), buffers++);
+        }
+        return null;
+    }
+
+    // What one evaluate() call works with: its columns, its buffers and the values of the globals.
+    private static final class Scratch {
+        final double[][] columns;
+        final double[][] buffers;
+        final double[] globals;
+
+        Scratch(double[][] columns, int buffers, int length, int globals) {
+            this.columns = columns;
+            this.buffers = new double[buffers][length];
+            this.globals = new double[globals];
+        }
+    }
+
+    /**
+     * A kernel writes the value of its subexpression for elements
+     * [from, from + length) of the columns into out[0, length).
+     */
+    private abstract static class Node {
+        abstract void evaluate(Scratch scratch, int from, int length, double[] out);
+
+        // Emits code that pushes the value of the subexpression at the loop's element.
+        abstract void emit(LoopBuilder loop);
+
+        // Scalar operands are used as they are instead of being filled into a buffer.
+        boolean isScalar() {
+            return false;
+        }
+    }
+
+    private static final class Constant extends Node {
+        final double value;
+
+        Constant(double value) {
+            this.value = value;
+        }
+
+        @Override
+        void evaluate(Scratch scratch, int from, int length, double[] out) {
+            Arrays.fill(out, 0, length, value);
+        }
+
+        @Override
+        void emit(LoopBuilder loop) {
+            loop.pushDouble(value);
+        }
+
+        @Override
+        boolean isScalar() {
+            return true;
+        }
+    }
+
+    private static final class Global extends Node {
+        private final Token name;
+        private final int slot;
+        // Where evaluate() keeps the value it read.
+        private final int index;
+
+        Global(Token name, int slot, int index) {
+            this.name = name;
+            this.slot = slot;
+            this.index = index;
+        }
+
+        double read(Interpreter context) {
+            Object value = context.globals.values[slot];
+            if (value == Environment.UNDEFINED) {
+                throw new RuntimeError(name, "Нерозпізнана змінна '" + name.lexeme + "'.");
+            }
+            if (!(value instanceof Double)) throw new RuntimeError(name, "Операнди повинні бути числами.");
+            return (double) value;
+        }
+
+        @Override
+        void evaluate(Scratch scratch, int from, int length, double[] out) {
+            Arrays.fill(out, 0, length, scratch.globals[index]);
+        }
+
+        @Override
+        void emit(LoopBuilder loop) {
+            loop.code.op1(LoopBuilder.DLOAD, loop.global(index), 2);
+        }
+
+        @Override
+        boolean isScalar() {
+            return true;
+        }
+    }
+
+    private static final class Parameter extends Node {
+        final int index;
+
+        Parameter(int index) {
+            this.index = index;
+        }
+
+        @Override
+        void evaluate(Scratch scratch, int from, int length, double[] out) {
+            System.arraycopy(scratch.columns[index], from, out, 0, length);
+        }
+
+        @Override
+        void emit(LoopBuilder loop) {
+            loop.code.op1(LoopBuilder.ALOAD, loop.column(index), 1);
+            loop.code.op1(LoopBuilder.ILOAD, LoopBuilder.ELEMENT, 1);
+            loop.code.op(LoopBuilder.DALOAD, 0);
+        }
+    }
+
+    private static final class Negate extends Node {
+        private final Node operand;
+
+        Negate(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        void evaluate(Scratch scratch, int from, int length, double[] out) {
+            operand.evaluate(scratch, from, length, out);
+            for (int i = 0; i < length; i++) {
+                out[i] = -out[i];
+            }
+        }
+
+        @Override
+        void emit(LoopBuilder loop) {
+            operand.emit(loop);
+            loop.code.op(LoopBuilder.DNEG, 0);
+        }
+    }
+
+    private static final class Unary extends Node {
+        static final int SIN = 0;
+        static final int COS = 1;
+        static final int SQRT = 2;
+
+        private final int function;
+        private final Node operand;
+
+        Unary(int function, Node operand) {
+            this.function = function;
+            this.operand = operand;
+        }
+
+        @Override
+        void evaluate(Scratch scratch, int from, int length, double[] out) {
+            operand.evaluate(scratch, from, length, out);
+            switch (function) {
+                case SIN:
+                    for (int i = 0; i < length; i++) out[i] = Math.sin(out[i]);
+                    break;
+                case COS:
+                    for (int i = 0; i < length; i++) out[i] = Math.cos(out[i]);
+                    break;
+                case SQRT:
+                    for (int i = 0; i < length; i++) out[i] = Math.sqrt(out[i]);
+                    break;
+            }
+        }
+
+        @Override
+        void emit(LoopBuilder loop) {
+            operand.emit(loop);
+            String method = function == SIN ? "sin" : function == COS ? "cos" : "sqrt";
+            loop.code.op2(LoopBuilder.INVOKESTATIC, loop.builder.methodRef("java/lang/Math", method, "(D)D"), 0);
+        }
+    }
+
+    private static final class Power extends Node {
+        private final Node base;
+        private final Node exponent;
+        // The scratch buffer that holds the exponents.
+        private final int buffer;
+
+        Power(Node base, Node exponent, int buffer) {
+            this.base = base;
+            this.exponent = exponent;
+            this.buffer = buffer;
+        }
+
+        @Override
+        void evaluate(Scratch scratch, int from, int length, double[] out) {
+            double[] exponents = scratch.buffers[buffer];
+            base.evaluate(scratch, from, length, out);
+            exponent.evaluate(scratch, from, length, exponents);
+            for (int i = 0; i < length; i++) {
+                out[i] = Math.pow(out[i], exponents[i]);
+            }
+        }
+
+        @Override
+        void emit(LoopBuilder loop) {
+            base.emit(loop);
+            exponent.emit(loop);
+            loop.code.op2(LoopBuilder.INVOKESTATIC, loop.builder.methodRef("java/lang/Math", "pow", "(DD)D"), -2);
+        }
+    }
+
+    private static final class Binary extends Node {
+        private final TokenType operator;
+        private final Node left;
+        private final Node right;
+        // The scratch buffer that holds the right operand, -1 if either operand is a scalar.
+        private final int buffer;
+
+        Binary(TokenType operator, Node left, Node right, int buffer) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+            this.buffer = buffer;
+        }
+
+        @Override
+        void evaluate(Scratch scratch, int from, int length, double[] out) {
+            if (left.isScalar() && !right.isScalar()) {
+                right.evaluate(scratch, from, length, out);
+                apply(scalar(left, scratch), out, length);
+                return;
+            }
+            left.evaluate(scratch, from, length, out);
+            if (right.isScalar()) {
+                apply(out, scalar(right, scratch), length);
+            } else {
+                // Columns are copied too: C2 only vectorizes when both arrays use the same index.
+                double[] operand = scratch.buffers[buffer];
+                right.evaluate(scratch, from, length, operand);
+                apply(out, operand, length);
+            }
+        }
+
+        @Override
+        void emit(LoopBuilder loop) {
+            left.emit(loop);
+            right.emit(loop);
+            switch (operator) {
+                case PLUS: loop.code.op(LoopBuilder.DADD, -2); break;
+                case MINUS: loop.code.op(LoopBuilder.DSUB, -2); break;
+                case STAR: loop.code.op(LoopBuilder.DMUL, -2); break;
+                case SLASH: loop.code.op(LoopBuilder.DDIV, -2); break;
+            }
+        }
+
+        private static double scalar(Node node, Scratch scratch) {
+            return node instanceof Constant ? ((Constant) node).value : scratch.globals[((Global) node).index];
+        }
+
+        // out[i] = out[i] op operand[i], one loop per operator so each stays vectorizable.
+        private void apply(double[] out, double[] operand, int length) {
+            switch (operator) {
+                case PLUS:
+                    for (int i = 0; i < length; i++) out[i] = out[i] + operand[i];
+                    break;
+                case MINUS:
+                    for (int i = 0; i < length; i++) out[i] = out[i] - operand[i];
+                    break;
+                case STAR:
+                    for (int i = 0; i < length; i++) out[i] = out[i] * operand[i];
+                    break;
+                case SLASH:
+                    for (int i = 0; i < length; i++) out[i] = out[i] / operand[i];
+                    break;
+            }
+        }
+
+        // out[i] = operand op out[i]
+        private void apply(double operand, double[] out, int length) {
+            switch (operator) {
+                case PLUS:
+                    for (int i = 0; i < length; i++) out[i] = operand + out[i];
+                    break;
+                case MINUS:
+                    for (int i = 0; i < length; i++) out[i] = operand - out[i];
+                    break;
+                case STAR:
+                    for (int i = 0; i < length; i++) out[i] = operand * out[i];
+                    break;
+                case SLASH:
+                    for (int i = 0; i < length; i++) out[i] = operand / out[i];
+                    break;
+            }
+        }
+
+        private void apply(double[] out, double operand, int length) {
+            switch (operator) {
+                case PLUS:
+                    for (int i = 0; i < length; i++) out[i] = out[i] + operand;
+                    break;
+                case MINUS:
+                    for (int i = 0; i < length; i++) out[i] = out[i] - operand;
+                    break;
+                case STAR:
+                    for (int i = 0; i < length; i++) out[i] = out[i] * operand;
+                    break;
+                case SLASH:
+                    for (int i = 0; i < length; i++) out[i] = out[i] / operand;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Base of the class generated for a batch. Its run() is the loop
+     * out[i] = expression for every i below length, with the columns and the
+     * values of the globals in locals, the way javac compiles the same loop.
+     */
+    abstract static class Loop {
+        abstract void run(double[][] columns, double[] globals, double[] out, int length);
+
+        // Returns the loaded loop, or null if the JVM refused the generated class.
+        static Loop generate(Node root, int columns, int globals) {
+            try {
+                byte[] bytes = new LoopBuilder(columns, globals).generate(root);
+                MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+                return (Loop) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+            } catch (Throwable e) {
+                return null;
+            }
+        }
+    }
+
+    // Writes the bytecode of a Loop, see Jit for the same over function bodies.
+    private static final class LoopBuilder {
+        private static final String SELF = "com/t1ne/formular/BatchLoop";
+        private static final String BASE = "com/t1ne/formular/Batch$Loop";
+
+        static final int ICONST_0 = 0x03;
+        static final int DCONST_0 = 0x0e;
+        static final int BIPUSH = 0x10;
+        static final int SIPUSH = 0x11;
+        static final int LDC2_W = 0x14;
+        static final int ILOAD = 0x15;
+        static final int DLOAD = 0x18;
+        static final int ALOAD = 0x19;
+        static final int ALOAD_0 = 0x2a;
+        static final int ALOAD_1 = 0x2b;
+        static final int ALOAD_2 = 0x2c;
+        static final int DALOAD = 0x31;
+        static final int AALOAD = 0x32;
+        static final int ISTORE = 0x36;
+        static final int DSTORE = 0x39;
+        static final int ASTORE = 0x3a;
+        static final int DASTORE = 0x52;
+        static final int DADD = 0x63;
+        static final int DSUB = 0x67;
+        static final int DMUL = 0x6b;
+        static final int DDIV = 0x6f;
+        static final int DNEG = 0x77;
+        static final int IINC = 0x84;
+        static final int IF_ICMPGE = 0xa2;
+        static final int GOTO = 0xa7;
+        static final int RETURN = 0xb1;
+        static final int INVOKESPECIAL = 0xb7;
+        static final int INVOKESTATIC = 0xb8;
+
+        // JVM locals of run(): this, its four arguments, the element index, then
+        // a reference per column and two words per global.
+        static final int OUT = 3;
+        static final int LENGTH = 4;
+        static final int ELEMENT = 5;
+
+        final ClassBuilder builder = new ClassBuilder(SELF, BASE);
+        final ClassBuilder.Code code;
+        private final int columns;
+        private final int globals;
+
+        LoopBuilder(int columns, int globals) {
+            this.columns = columns;
+            this.globals = globals;
+            this.code = builder.method(0, "run", "([[D[D[DI)V");
+        }
+
+        int column(int index) {
+            return ELEMENT + 1 + index;
+        }
+
+        int global(int index) {
+            return ELEMENT + 1 + columns + 2 * index;
+        }
+
+        byte[] generate(Node root) {
+            ClassBuilder.Code constructor = builder.method(0, "<init>", "()V");
+            constructor.op(ALOAD_0, 1);
+            constructor.op2(INVOKESPECIAL, builder.methodRef(BASE, "<init>", "()V"), -1);
+            constructor.op(RETURN, 0);
+            constructor.finish(1);
+
+            int locals = global(globals);
+            if (locals > 255) throw new IllegalStateException("Too many columns and globals");
+            for (int i = 0; i < columns; i++) {
+                code.op(ALOAD_1, 1);
+                pushInt(i);
+                code.op(AALOAD, -1);
+                code.op1(ASTORE, column(i), -1);
+            }
+            for (int i = 0; i < globals; i++) {
+                code.op(ALOAD_2, 1);
+                pushInt(i);
+                code.op(DALOAD, 0);
+                code.op1(DSTORE, global(i), -2);
+            }
+            code.op(ICONST_0, 1);
+            code.op1(ISTORE, ELEMENT, -1);
+
+            int start = code.newLabel();
+            int end = code.newLabel();
+            code.mark(start);
+            code.op1(ILOAD, ELEMENT, 1);
+            code.op1(ILOAD, LENGTH, 1);
+            code.jump(IF_ICMPGE, end, -2);
+            code.op1(ALOAD, OUT, 1);
+            code.op1(ILOAD, ELEMENT, 1);
+            root.emit(this);
+            code.op(DASTORE, -4);
+            code.op2(IINC, ELEMENT << 8 | 1, 0);
+            code.jump(GOTO, start, 0);
+            code.mark(end);
+            code.op(RETURN, 0);
+            code.finish(locals);
+            return builder.toBytes();
+        }
+
+        private void pushInt(int value) {
+            if (value <= 5) {
+                code.op(ICONST_0 + value, 1);
+            } else if (value <= Byte.MAX_VALUE) {
+                code.op1(BIPUSH, value, 1);
+            } else {
+                code.op2(SIPUSH, value, 1);
+            }
+        }
+
+        void pushDouble(double value) {
+            if (Double.doubleToRawLongBits(value) == 0L) {
+                code.op(DCONST_0, 2);
+            } else {
+                code.op2(LDC2_W, builder.doubleConstant(value), 2);
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.t1ne.formular;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class Chunk {
+    int[] code = new int[32];
+    // Token of every opcode, used only to report runtime errors.
+    Token[] tokens = new Token[32];
+    int count = 0;
+    Object[] constants;
+
+    private final List<Object> constantList = new ArrayList<>();
+    private final Map<Object, Integer> constantIndexes = new HashMap<>();
+
+    int write(int value, Token token) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            tokens = Arrays.copyOf(tokens, count * 2);
+        }
+        code[count] = value;
+        tokens[count] = token;
+        return count++;
+    }
+
+    void patch(int offset, int value) {
+        code[offset] = value;
+    }
+
+    int addConstant(Object value) {
+        Integer index = constantIndexes.get(value);
+        if (index == null) {
+            index = constantList.size();
+            constantList.add(value);
+            constantIndexes.put(value, index);
+        }
+        return index;
+    }
+
+    Chunk finish() {
+        code = Arrays.copyOf(code, count);
+        tokens = Arrays.copyOf(tokens, count);
+        constants = constantList.toArray();
+        return this;
+    }
+}
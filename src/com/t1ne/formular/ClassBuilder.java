@@ -0,0 +1,199 @@
+package com.t1ne.formular;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of a JVM class file writer for the code Jit generates. Classes
+ * are written as version 49, which is verified by type inference, so no
+ * StackMapTable frames have to be computed.
+ */
+final class ClassBuilder {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolCount = 1;
+    private final int thisClass;
+    private final int superClass;
+    private final List<Code> methods = new ArrayList<>();
+
+    ClassBuilder(String name, String superName) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+    }
+
+    private int entry(String key, int tag, Object... parts) {
+        Integer index = entries.get(key);
+        if (index != null) return index;
+        try {
+            poolOut.writeByte(tag);
+            for (Object part : parts) {
+                if (part instanceof String) poolOut.writeUTF((String) part);
+                else if (part instanceof Double) poolOut.writeDouble((Double) part);
+                else poolOut.writeShort((Integer) part);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        index = poolCount;
+        // Doubles take two constant pool entries.
+        poolCount += tag == 6 ? 2 : 1;
+        entries.put(key, index);
+        return index;
+    }
+
+    int utf8(String value) {
+        return entry("U" + value, 1, value);
+    }
+
+    int classRef(String name) {
+        return entry("C" + name, 7, utf8(name));
+    }
+
+    int doubleConstant(double value) {
+        return entry("D" + Double.doubleToRawLongBits(value), 6, value);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return entry("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor));
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return entry("F" + owner + "." + name + ":" + descriptor, 9, classRef(owner), nameAndType(name, descriptor));
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return entry("M" + owner + "." + name + descriptor, 10, classRef(owner), nameAndType(name, descriptor));
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return entry("I" + owner + "." + name + descriptor, 11, classRef(owner), nameAndType(name, descriptor));
+    }
+
+    Code method(int access, String name, String descriptor) {
+        Code code = new Code(access, utf8(name), utf8(descriptor));
+        methods.add(code);
+        return code;
+    }
+
+    byte[] toBytes() {
+        int codeName = utf8("Code");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (Code method : methods) {
+                byte[] code = method.bytes.toByteArray();
+                out.writeShort(method.access);
+                out.writeShort(method.name);
+                out.writeShort(method.descriptor);
+                out.writeShort(1);
+                out.writeShort(codeName);
+                out.writeInt(12 + code.length);
+                out.writeShort(method.maxStack);
+                out.writeShort(method.maxLocals);
+                out.writeInt(code.length);
+                out.write(code);
+                out.writeShort(0); // exception table
+                out.writeShort(0); // attributes
+            }
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Bytecode of one method. Every instruction is given with its effect on the
+     * operand stack, which is how max_stack is computed.
+     */
+    static final class Code {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private int maxLocals;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final List<Integer> labels = new ArrayList<>();
+        // Pairs of (instruction offset, label) for the branches to patch.
+        private final List<int[]> jumps = new ArrayList<>();
+        private int stack = 0;
+        private int maxStack = 0;
+
+        private Code(int access, int name, int descriptor) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+
+        void op(int opcode, int stackEffect) {
+            stack += stackEffect;
+            if (stack > maxStack) maxStack = stack;
+            bytes.write(opcode);
+        }
+
+        void op1(int opcode, int operand, int stackEffect) {
+            op(opcode, stackEffect);
+            bytes.write(operand);
+        }
+
+        void op2(int opcode, int operand, int stackEffect) {
+            op(opcode, stackEffect);
+            bytes.write(operand >> 8);
+            bytes.write(operand);
+        }
+
+        void invokeInterface(int method, int argumentSlots, int stackEffect) {
+            op2(0xB9, method, stackEffect); // invokeinterface
+            bytes.write(argumentSlots + 1);
+            bytes.write(0);
+        }
+
+        int newLabel() {
+            labels.add(-1);
+            return labels.size() - 1;
+        }
+
+        void mark(int label) {
+            labels.set(label, bytes.size());
+        }
+
+        void jump(int opcode, int label, int stackEffect) {
+            jumps.add(new int[] {bytes.size(), label});
+            op2(opcode, 0, stackEffect);
+        }
+
+        // Resolves the branch offsets, fails if the method outgrew 16-bit offsets.
+        void finish(int maxLocals) {
+            this.maxLocals = maxLocals;
+            byte[] code = bytes.toByteArray();
+            if (code.length > Short.MAX_VALUE) throw new IllegalStateException("Method too large");
+            for (int[] jump : jumps) {
+                int offset = labels.get(jump[1]) - jump[0];
+                code[jump[0] + 1] = (byte) (offset >> 8);
+                code[jump[0] + 2] = (byte) offset;
+            }
+            bytes.reset();
+            bytes.write(code, 0, code.length);
+        }
+    }
+}
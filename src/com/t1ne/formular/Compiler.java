@@ -0,0 +1,342 @@
+package com.t1ne.formular;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.t1ne.formular.OpCode.*;
+
+/**
+ * Lowers resolved Stmt/Expr trees into bytecode for the VM. The resolver
+ * already lays out the blocks of a function in one flat frame, so its local
+ * slots are plain frame indexes.
+ */
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // What a script returns when it runs to its end rather than to a top-level return.
+    static final Object END = new Object();
+
+    private final VM vm;
+    private final Chunk chunk = new Chunk();
+    // Slots declared so far in every open scope, innermost last. Empty at the top level of a script.
+    private final List<Set<Integer>> declared = new ArrayList<>();
+    private int frameSize = 0;
+    private int stackDepth = 0;
+    private int maxStack = 0;
+
+    private Compiler(VM vm) {
+        this.vm = vm;
+    }
+
+    static VMFunction compileScript(VM vm, List<Stmt> statements) {
+        Compiler compiler = new Compiler(vm);
+        for (Stmt statement : statements) {
+            compiler.compile(statement);
+            compiler.react(statement);
+        }
+        compiler.emit(CONSTANT, compiler.chunk.addConstant(END), null, 1);
+        compiler.emit(RETURN, null, -1);
+        return compiler.finish("script", null, 0, null);
+    }
+
+    static VMFunction compileExpression(VM vm, Expr expression) {
+        Compiler compiler = new Compiler(vm);
+        compiler.compile(expression);
+        compiler.emit(RETURN, null, -1);
+        return compiler.finish("formula", null, 0, null);
+    }
+
+    private static VMFunction compileFunction(VM vm, Stmt.Function function) {
+        Compiler compiler = new Compiler(vm);
+        compiler.openScope();
+        compiler.frameSize = function.slots;
+        for (int i = 0; i < function.params.size(); i++) {
+            compiler.declared.get(0).add(i);
+        }
+        for (Stmt statement : function.body) {
+            compiler.compile(statement);
+        }
+        return compiler.finish(function.name.lexeme, function, function.params.size(), function.name);
+    }
+
+    private VMFunction finish(String name, Stmt.Function declaration, int arity, Token token) {
+        emit(NIL, token, 1);
+        emit(RETURN, token, -1);
+        return new VMFunction(vm, name, declaration, arity, chunk.finish(), frameSize, maxStack);
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    // Top-level declarations and assignments trigger a reactive update of their dependents.
+    private void react(Stmt statement) {
+        if (statement instanceof Stmt.Var
+                || statement instanceof Stmt.Expression
+                && ((Stmt.Expression) statement).expression instanceof Expr.Assign
+                && ((Expr.Assign) ((Stmt.Expression) statement).expression).depth == Resolver.GLOBAL) {
+            emit(REACT, null, 0);
+            chunk.write(chunk.addConstant(statement), null);
+        }
+    }
+
+    private int emit(int op, Token token, int stackEffect) {
+        stackDepth += stackEffect;
+        if (stackDepth > maxStack) maxStack = stackDepth;
+        return chunk.write(op, token);
+    }
+
+    private void emit(int op, int operand, Token token, int stackEffect) {
+        emit(op, token, stackEffect);
+        chunk.write(operand, token);
+    }
+
+    private int emitJump(int op, int stackEffect) {
+        emit(op, null, stackEffect);
+        return chunk.write(-1, null);
+    }
+
+    // Jumps when the condition is false, fusing a comparison into the jump when possible.
+    private int emitConditionJump(Expr condition) {
+        if (condition instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) condition;
+            int op = -1;
+            switch (binary.operator.type) {
+                case GREATER: op = JUMP_UNLESS_GREATER; break;
+                case GREATER_EQUAL: op = JUMP_UNLESS_GREATER_EQUAL; break;
+                case LESS: op = JUMP_UNLESS_LESS; break;
+                case LESS_EQUAL: op = JUMP_UNLESS_LESS_EQUAL; break;
+            }
+            if (op != -1) {
+                compile(binary.left);
+                compile(binary.right);
+                emit(op, binary.operator, -2);
+                return chunk.write(-1, binary.operator);
+            }
+        }
+        compile(condition);
+        return emitJump(JUMP_IF_FALSE, -1);
+    }
+
+    private void patchJump(int operand) {
+        chunk.patch(operand, chunk.count);
+    }
+
+    private void openScope() {
+        declared.add(new HashSet<>());
+    }
+
+    private void closeScope() {
+        declared.remove(declared.size() - 1);
+    }
+
+    private void define(int slot, Token name) {
+        if (declared.isEmpty()) {
+            emit(DEFINE_GLOBAL, slot, name, -1);
+        } else {
+            emit(DEFINE_LOCAL, slot, name, -1);
+            declared.get(declared.size() - 1).add(slot);
+        }
+    }
+
+    // A slot that is fresh in its scope may still hold a value left by an earlier scope
+    // sharing the frame, so only slots declared before in the same scope get overloaded.
+    private boolean overloads(int slot) {
+        return declared.isEmpty() || declared.get(declared.size() - 1).contains(slot);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        // A top-level block of the script has a frame of its own size.
+        if (declared.isEmpty() && stmt.slots > frameSize) frameSize = stmt.slots;
+        openScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        closeScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if (stmt.expression instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign) stmt.expression;
+            compile(assign.value);
+            if (assign.depth == Resolver.GLOBAL) {
+                emit(STORE_GLOBAL, assign.slot, assign.name, -1);
+            } else {
+                emit(STORE_LOCAL, assign.slot, assign.name, -1);
+            }
+            return null;
+        }
+        compile(stmt.expression);
+        emit(POP, null, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        VMFunction function = compileFunction(vm, stmt);
+        emit(CONSTANT, chunk.addConstant(function), stmt.name, 1);
+        if (!overloads(stmt.slot)) {
+            define(stmt.slot, stmt.name);
+        } else if (declared.isEmpty()) {
+            emit(OVERLOAD_GLOBAL, stmt.slot, stmt.name, -1);
+        } else {
+            emit(OVERLOAD_LOCAL, stmt.slot, stmt.name, -1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        int elseJump = emitConditionJump(stmt.condition);
+        compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            patchJump(elseJump);
+            return null;
+        }
+        int endJump = emitJump(JUMP, 0);
+        patchJump(elseJump);
+        compile(stmt.elseBranch);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(PRINT, null, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emit(NIL, stmt.keyword, 1);
+        }
+        emit(RETURN, stmt.keyword, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(NIL, stmt.name, 1);
+        }
+        define(stmt.slot, stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = chunk.count;
+        int exitJump = emitConditionJump(stmt.condition);
+        compile(stmt.body);
+        emit(JUMP, loopStart, null, 0);
+        patchJump(exitJump);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        if (expr.depth == Resolver.GLOBAL) {
+            emit(SET_GLOBAL, expr.slot, expr.name, 0);
+        } else {
+            emit(SET_LOCAL, expr.slot, expr.name, 0);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        if (expr.right instanceof Expr.Literal && ((Expr.Literal) expr.right).value instanceof Double) {
+            int op = -1;
+            switch (expr.operator.type) {
+                case MINUS: op = SUBTRACT_NUMBER; break;
+                case PLUS: op = ADD_NUMBER; break;
+                case SLASH: op = DIVIDE_NUMBER; break;
+                case STAR: op = MULTIPLY_NUMBER; break;
+            }
+            if (op != -1) {
+                compile(expr.left);
+                emit(op, chunk.addConstant(((Expr.Literal) expr.right).value), expr.operator, 0);
+                return null;
+            }
+        }
+        compile(expr.left);
+        compile(expr.right);
+        int op;
+        switch (expr.operator.type) {
+            case GREATER: op = GREATER; break;
+            case GREATER_EQUAL: op = GREATER_EQUAL; break;
+            case LESS: op = LESS; break;
+            case LESS_EQUAL: op = LESS_EQUAL; break;
+            case EXCL_EQUAL: op = NOT_EQUAL; break;
+            case EQUAL_EQUAL: op = EQUAL; break;
+            case MINUS: op = SUBTRACT; break;
+            case PLUS: op = ADD; break;
+            case SLASH: op = DIVIDE; break;
+            case STAR: op = MULTIPLY; break;
+            default: throw new IllegalStateException("Unknown operator " + expr.operator.type);
+        }
+        emit(op, expr.operator, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compile(expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+        emit(CALL, expr.arguments.size(), expr.paren, -expr.arguments.size());
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(NIL, null, 1);
+        } else if (expr.value.equals(true)) {
+            emit(TRUE, null, 1);
+        } else if (expr.value.equals(false)) {
+            emit(FALSE, null, 1);
+        } else {
+            emit(CONSTANT, chunk.addConstant(expr.value), null, 1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        emit(expr.operator.type == TokenType.MINUS ? NEGATE : NOT, expr.operator, 0);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth == Resolver.GLOBAL) {
+            emit(GET_GLOBAL, expr.slot, expr.name, 1);
+        } else {
+            emit(GET_LOCAL, expr.slot, expr.name, 1);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,11 @@
+package com.t1ne.formular;
+
+/**
+ * How a statement finished, passed back up by the interpreter instead of
+ * unwinding with exceptions. Jumps like break and continue would go here too.
+ */
+enum Completion {
+    NORMAL,
+    // A return statement ran, the value waits in Interpreter.returnValue.
+    RETURN
+}
@@ -0,0 +1,165 @@
+package com.t1ne.formular;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Links every global variable to the formula it was last declared or assigned
+ * with. When a variable changes, only the formulas that transitively read it
+ * have to be recomputed, each one once and in topological order.
+ */
+class DependencyGraph {
+    static class Node {
+        final int slot;
+        Expr formula;
+        private final Set<Node> dependencies = new LinkedHashSet<>();
+        private final Set<Node> dependents = new LinkedHashSet<>();
+        private int mark;
+        // Topological level in the last update: 0 for the direct dependents of the
+        // changed variable, otherwise one more than its highest affected dependency.
+        int level;
+
+        Node(int slot) {
+            this.slot = slot;
+        }
+    }
+
+    private Node[] nodes = new Node[16];
+    private int epoch = 0;
+
+    /**
+     * Records a new formula for the global in the given slot and returns the
+     * variables that have to be recomputed, in the order they have to be
+     * recomputed in.
+     */
+    List<Node> update(int slot, Expr formula) {
+        Node node = node(slot);
+        for (Node dependency : node.dependencies) {
+            dependency.dependents.remove(node);
+        }
+        node.dependencies.clear();
+
+        List<Node> affected = dependentsOf(node);
+
+        List<Node> reads = new ArrayList<>();
+        if (formula != null) {
+            formula.accept(new Reads(reads));
+        }
+        // A formula that reads its own variable, directly or through its dependents,
+        // would never settle, so its value is kept but it stops being reactive.
+        boolean cyclic = false;
+        for (Node read : reads) {
+            if (read.mark == epoch) cyclic = true;
+        }
+        node.formula = cyclic ? null : formula;
+        if (!cyclic) {
+            for (Node read : reads) {
+                node.dependencies.add(read);
+                read.dependents.add(node);
+            }
+        }
+        return affected;
+    }
+
+    private Node node(int slot) {
+        if (slot >= nodes.length) {
+            nodes = Arrays.copyOf(nodes, Math.max(slot + 1, nodes.length * 2));
+        }
+        if (nodes[slot] == null) nodes[slot] = new Node(slot);
+        return nodes[slot];
+    }
+
+    // Depth-first walk over the dependents, reversed post-order is a topological order.
+    private List<Node> dependentsOf(Node source) {
+        int mark = ++epoch;
+        List<Node> order = new ArrayList<>();
+        Deque<Node> path = new ArrayDeque<>();
+        Deque<Iterator<Node>> next = new ArrayDeque<>();
+
+        source.mark = mark;
+        path.push(source);
+        next.push(source.dependents.iterator());
+        while (!path.isEmpty()) {
+            Iterator<Node> dependents = next.peek();
+            if (dependents.hasNext()) {
+                Node dependent = dependents.next();
+                if (dependent.mark != mark) {
+                    dependent.mark = mark;
+                    path.push(dependent);
+                    next.push(dependent.dependents.iterator());
+                }
+            } else {
+                order.add(path.pop());
+                next.pop();
+            }
+        }
+
+        // The source itself is last in post-order and is not recomputed.
+        order.remove(order.size() - 1);
+        Collections.reverse(order);
+        for (Node node : order) {
+            node.level = 0;
+            for (Node dependency : node.dependencies) {
+                if (dependency.mark == mark && dependency != source) {
+                    node.level = Math.max(node.level, dependency.level + 1);
+                }
+            }
+        }
+        return order;
+    }
+
+    private class Reads implements Expr.Visitor<Void> {
+        private final List<Node> reads;
+
+        Reads(List<Node> reads) {
+            this.reads = reads;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            return expr.value.accept(this);
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expr.left.accept(this);
+            return expr.right.accept(this);
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            for (Expr argument : expr.arguments) {
+                argument.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            return expr.expression.accept(this);
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            return expr.right.accept(this);
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            if (expr.depth == Resolver.GLOBAL) reads.add(node(expr.slot));
+            return null;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.t1ne.formular;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The diff builtin: diff(f, "x") is a function with the parameters of f that
+ * returns the derivative of f by x. The derivative is built symbolically from
+ * the body of f, simplified and resolved once per function and variable, after
+ * that it is an ordinary function and gets interpreted and compiled like one.
+ */
+class Derivatives implements FCallable {
+    private static final Expr ZERO = new Expr.Literal(0.0);
+    private static final Expr ONE = new Expr.Literal(1.0);
+
+    // Derivatives by function declaration and variable; dropped with the declaration.
+    // Guarded by itself, every context of a program shares the builtin.
+    private final Map<Stmt.Function, Map<String, FFunction>> cache = new WeakHashMap<>();
+
+    @Override
+    public int argsNum() { return 2; }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return call2(interpreter, arguments.get(0), arguments.get(1));
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object first, Object second) {
+        Stmt.Function function = declaration(first);
+        if (!(second instanceof String)) {
+            throw new RuntimeError(function.name, "Змінна диференціювання повинна бути символьним рядком.");
+        }
+        String variable = (String) second;
+
+        synchronized (cache) {
+            Map<String, FFunction> byVariable = cache.computeIfAbsent(function, f -> new HashMap<>());
+            FFunction derivative = byVariable.get(variable);
+            if (derivative == null) {
+                derivative = new FFunction(new Derivative(interpreter, function, variable).declaration());
+                byVariable.put(variable, derivative);
+            }
+            return derivative;
+        }
+    }
+
+    @Override
+    public String toString() { return "<вбудована функція diff>"; }
+
+    private static Stmt.Function declaration(Object callee) {
+        if (callee instanceof FFunction) return ((FFunction) callee).declaration;
+        if (callee instanceof JitFunction) return ((JitFunction) callee).function.declaration;
+        if (callee instanceof VMFunction && ((VMFunction) callee).declaration != null) {
+            return ((VMFunction) callee).declaration;
+        }
+        if (callee instanceof FOverloads) {
+            throw new RuntimeError(null, "Неможливо диференціювати перевантажену функцію " + callee + ".");
+        }
+        throw new RuntimeError(null, "Диференціювати можливо лише функції, визначені у програмі.");
+    }
+
+    /**
+     * Derivative of one function by one of its parameters. Locals declared
+     * before the return are substituted into the returned expression first, so
+     * only a single expression has to be differentiated.
+     */
+    private static class Derivative {
+        private final Interpreter interpreter;
+        private final Stmt.Function function;
+        private final String variable;
+        private final int line;
+
+        Derivative(Interpreter interpreter, Stmt.Function function, String variable) {
+            this.interpreter = interpreter;
+            this.function = function;
+            this.variable = variable;
+            this.line = function.name.line;
+        }
+
+        Stmt.Function declaration() {
+            if (!isParameter(variable)) {
+                throw new RuntimeError(function.name,
+                        "Функція '" + function.name.lexeme + "' не має параметра '" + variable + "'.");
+            }
+
+            Map<String, Expr> locals = new HashMap<>();
+            Expr value = null;
+            for (Stmt statement : function.body) {
+                if (statement instanceof Stmt.Var && ((Stmt.Var) statement).initializer != null) {
+                    Stmt.Var var = (Stmt.Var) statement;
+                    locals.put(var.name.lexeme, substitute(var.initializer, locals));
+                } else if (statement instanceof Stmt.Return && ((Stmt.Return) statement).value != null) {
+                    value = substitute(((Stmt.Return) statement).value, locals);
+                    break;
+                } else {
+                    throw unsupported();
+                }
+            }
+            if (value == null) throw unsupported();
+
+            Token name = new Token(TokenType.IDENTIFIER,
+                    "d" + function.name.lexeme + "/d" + variable, null, line);
+            Token keyword = new Token(TokenType.RETURN, "return", null, line);
+            Stmt.Function derivative = new Stmt.Function(name, function.params,
+                    Collections.singletonList(new Stmt.Return(keyword, derivative(value))));
+            new Resolver(interpreter).resolveFunction(derivative);
+            return derivative;
+        }
+
+        private RuntimeError unsupported() {
+            return new RuntimeError(function.name,
+                    "Неможливо диференціювати функцію '" + function.name.lexeme + "' за змінною '" + variable + "'.");
+        }
+
+        private boolean isParameter(String name) {
+            for (Token param : function.params) {
+                if (param.lexeme.equals(name)) return true;
+            }
+            return false;
+        }
+
+        // Whether the name means the builtin wherever the derivative calls it.
+        private boolean isBuiltin(String name) {
+            FCallable builtin = interpreter.builtins.get(name);
+            return builtin != null && !isParameter(name)
+                    && interpreter.globals.values[interpreter.globalSlot(Resolver.functionKey(name))] == builtin;
+        }
+
+        // A fresh copy of the expression with the locals replaced by their values.
+        private Expr substitute(Expr expr, Map<String, Expr> locals) {
+            if (expr instanceof Expr.Literal) return expr;
+            if (expr instanceof Expr.Variable) {
+                Token name = ((Expr.Variable) expr).name;
+                Expr value = locals.get(name.lexeme);
+                return value != null ? copy(value) : new Expr.Variable(name);
+            }
+            if (expr instanceof Expr.Grouping) {
+                return new Expr.Grouping(substitute(((Expr.Grouping) expr).expression, locals));
+            }
+            if (expr instanceof Expr.Unary) {
+                Expr.Unary unary = (Expr.Unary) expr;
+                return new Expr.Unary(unary.operator, substitute(unary.right, locals));
+            }
+            if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary) expr;
+                return new Expr.Binary(substitute(binary.left, locals), binary.operator, substitute(binary.right, locals));
+            }
+            if (expr instanceof Expr.Call) {
+                Expr.Call call = (Expr.Call) expr;
+                List<Expr> arguments = new ArrayList<>();
+                for (Expr argument : call.arguments) {
+                    arguments.add(substitute(argument, locals));
+                }
+                return new Expr.Call(substitute(call.callee, locals), call.paren, arguments);
+            }
+            // Assignments would make the function more than a formula.
+            throw unsupported();
+        }
+
+        // Every node of the derivative gets its own copy, the resolver and the interpreter keep state in them.
+        private Expr copy(Expr expr) {
+            return substitute(expr, Collections.emptyMap());
+        }
+
+        private boolean depends(Expr expr) {
+            if (expr instanceof Expr.Variable) return ((Expr.Variable) expr).name.lexeme.equals(variable);
+            if (expr instanceof Expr.Grouping) return depends(((Expr.Grouping) expr).expression);
+            if (expr instanceof Expr.Unary) return depends(((Expr.Unary) expr).right);
+            if (expr instanceof Expr.Binary) {
+                return depends(((Expr.Binary) expr).left) || depends(((Expr.Binary) expr).right);
+            }
+            if (expr instanceof Expr.Call) {
+                Expr.Call call = (Expr.Call) expr;
+                if (depends(call.callee)) return true;
+                for (Expr argument : call.arguments) {
+                    if (depends(argument)) return true;
+                }
+            }
+            return false;
+        }
+
+        private Expr derivative(Expr expr) {
+            if (!depends(expr)) return ZERO;
+            if (expr instanceof Expr.Variable) return ONE;
+            if (expr instanceof Expr.Grouping) return derivative(((Expr.Grouping) expr).expression);
+            if (expr instanceof Expr.Unary) {
+                Expr.Unary unary = (Expr.Unary) expr;
+                if (unary.operator.type == TokenType.MINUS) return negate(derivative(unary.right));
+            } else if (expr instanceof Expr.Binary) {
+                return binary((Expr.Binary) expr);
+            } else if (expr instanceof Expr.Call) {
+                return call((Expr.Call) expr);
+            }
+            throw unsupported();
+        }
+
+        private Expr binary(Expr.Binary expr) {
+            Expr left = expr.left;
+            Expr right = expr.right;
+            switch (expr.operator.type) {
+                case PLUS:
+                    return add(derivative(left), derivative(right));
+                case MINUS:
+                    return subtract(derivative(left), derivative(right));
+                case STAR:
+                    return add(multiply(derivative(left), copy(right)), multiply(copy(left), derivative(right)));
+                case SLASH:
+                    if (!depends(right)) return divide(derivative(left), copy(right));
+                    return divide(
+                            subtract(multiply(derivative(left), copy(right)), multiply(copy(left), derivative(right))),
+                            multiply(copy(right), copy(right)));
+            }
+            throw unsupported();
+        }
+
+        private Expr call(Expr.Call expr) {
+            if (!(expr.callee instanceof Expr.Variable)) throw unsupported();
+            String name = ((Expr.Variable) expr.callee).name.lexeme;
+            if (!isBuiltin(name) || expr.arguments.size() != interpreter.builtins.get(name).argsNum()) {
+                throw unsupported();
+            }
+
+            Expr argument = expr.arguments.get(0);
+            switch (name) {
+                case "sin":
+                    return multiply(builtin("cos", expr.paren, copy(argument)), derivative(argument));
+                case "cos":
+                    return negate(multiply(builtin("sin", expr.paren, copy(argument)), derivative(argument)));
+                case "sqrt":
+                    return divide(derivative(argument), multiply(new Expr.Literal(2.0), builtin("sqrt", expr.paren, copy(argument))));
+                case "kvadrat":
+                    return multiply(multiply(new Expr.Literal(2.0), copy(argument)), derivative(argument));
+                case "pow":
+                    // There is no logarithm builtin, so only constant exponents.
+                    Expr exponent = expr.arguments.get(1);
+                    if (depends(exponent)) break;
+                    Expr power = builtin("pow", expr.paren, copy(argument), subtract(copy(exponent), ONE));
+                    return multiply(multiply(copy(exponent), power), derivative(argument));
+            }
+            throw unsupported();
+        }
+
+        private Expr builtin(String name, Token paren, Expr... arguments) {
+            if (!isBuiltin(name)) throw unsupported();
+            Expr callee = new Expr.Variable(new Token(TokenType.IDENTIFIER, name, null, paren.line));
+            return new Expr.Call(callee, paren, Arrays.asList(arguments));
+        }
+
+        private Token operator(TokenType type, String lexeme) {
+            return new Token(type, lexeme, null, line);
+        }
+
+        // The builders below simplify as they go, so derivatives don't drag along terms like 0 * x or x * 1.
+
+        private static Double number(Expr expr) {
+            if (expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double) {
+                return (Double) ((Expr.Literal) expr).value;
+            }
+            return null;
+        }
+
+        private static boolean is(Expr expr, double value) {
+            Double number = number(expr);
+            return number != null && number == value;
+        }
+
+        private Expr add(Expr left, Expr right) {
+            if (number(left) != null && number(right) != null) return new Expr.Literal(number(left) + number(right));
+            if (is(left, 0)) return right;
+            if (is(right, 0)) return left;
+            return new Expr.Binary(left, operator(TokenType.PLUS, "+"), right);
+        }
+
+        private Expr subtract(Expr left, Expr right) {
+            if (number(left) != null && number(right) != null) return new Expr.Literal(number(left) - number(right));
+            if (is(right, 0)) return left;
+            if (is(left, 0)) return negate(right);
+            return new Expr.Binary(left, operator(TokenType.MINUS, "-"), right);
+        }
+
+        private Expr multiply(Expr left, Expr right) {
+            if (number(left) != null && number(right) != null) return new Expr.Literal(number(left) * number(right));
+            if (is(left, 0) || is(right, 0)) return ZERO;
+            if (is(left, 1)) return right;
+            if (is(right, 1)) return left;
+            return new Expr.Binary(left, operator(TokenType.STAR, "*"), right);
+        }
+
+        private Expr divide(Expr left, Expr right) {
+            if (number(left) != null && number(right) != null) return new Expr.Literal(number(left) / number(right));
+            if (is(left, 0)) return ZERO;
+            if (is(right, 1)) return left;
+            return new Expr.Binary(left, operator(TokenType.SLASH, "/"), right);
+        }
+
+        private Expr negate(Expr expr) {
+            if (number(expr) != null) return new Expr.Literal(-number(expr));
+            if (expr instanceof Expr.Unary && ((Expr.Unary) expr).operator.type == TokenType.MINUS) {
+                return ((Expr.Unary) expr).right;
+            }
+            return new Expr.Unary(operator(TokenType.MINUS, "-"), expr);
+        }
+    }
+}
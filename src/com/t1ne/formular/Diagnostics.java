@@ -0,0 +1,53 @@
+package com.t1ne.formular;
+
+import java.util.List;
+
+/**
+ * Receives what a run can tell about itself besides its results: how long
+ * each phase took and, if dumps() is true, the trees of the program and the
+ * optimizer's log. Nothing is built for a sink that doesn't want it, so OFF
+ * costs a run nothing.
+ */
+interface Diagnostics {
+    enum Level { OFF, SUMMARY, FULL }
+
+    Diagnostics OFF = new Diagnostics() {
+        @Override
+        public boolean timings() { return false; }
+
+        @Override
+        public boolean dumps() { return false; }
+
+        @Override
+        public void phase(String phase, long nanos) {}
+
+        @Override
+        public void dump(String name, List<Stmt> statements) {}
+
+        @Override
+        public void dump(String name, String text) {}
+
+        @Override
+        public void finish() {}
+
+        @Override
+        public void close() {}
+    };
+
+    boolean timings();
+
+    boolean dumps();
+
+    void phase(String phase, long nanos);
+
+    // Trees of the statements, one after another.
+    void dump(String name, List<Stmt> statements);
+
+    void dump(String name, String text);
+
+    // Ends one run, reporting what was collected for it.
+    void finish();
+
+    // Waits for everything reported so far to be written.
+    void close();
+}
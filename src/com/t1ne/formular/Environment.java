@@ -1,39 +1,38 @@
 package com.t1ne.formular;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
+/**
+ * Slots of the globals or of one frame. Blocks don't get environments of their
+ * own: the resolver lays out every block of a function (or of a top-level
+ * block) in that one frame.
+ */
 class Environment {
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
-    Environment() {
-        enclosing = null;
-    }
+    // Marks global slots that were resolved but never defined.
+    static final Object UNDEFINED = new Object();
+
+    Object[] values;
 
-    Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+    // A frame, its slots start out as nil.
+    Environment(int size) {
+        if (Metrics.ENABLED) Metrics.FRAMES.increment();
+        values = new Object[size];
     }
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
-        if (enclosing != null) return enclosing.get(name);
-        throw new RuntimeError(name, "Нерозпізнана змінна '" + name.lexeme + "'.");
+
+    static Environment globals(int size) {
+        Environment globals = new Environment(size);
+        Arrays.fill(globals.values, UNDEFINED);
+        return globals;
     }
 
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
-        }
-        throw new RuntimeError(name, "Нерозпізнана змінна '" + name.lexeme + "'.");
+    void define(int slot, Object value) {
+        values[slot] = value;
     }
 
-    void define(String name, Object value) {
-        values.put(name, value);
+    void ensureCapacity(int size) {
+        if (size <= values.length) return;
+        int oldSize = values.length;
+        values = Arrays.copyOf(values, Math.max(size, oldSize * 2));
+        Arrays.fill(values, oldSize, values.length, UNDEFINED);
     }
-}
\ No newline at end of file
+}
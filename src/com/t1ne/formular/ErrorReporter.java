@@ -0,0 +1,12 @@
+package com.t1ne.formular;
+
+/**
+ * Receives the errors of scanning, parsing and running a program. FormulaR
+ * prints them to the console, a compiled Formula collects them instead.
+ */
+interface ErrorReporter {
+    // where is "" or names the offending token, e.g. " в 'x'".
+    void error(int line, String where, String message);
+
+    void runtimeError(RuntimeError error);
+}
@@ -25,6 +25,8 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+    int depth;
+    int slot;
   }
   static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
@@ -41,6 +43,8 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+    boolean numeric;
+    int state;
   }
   static class Call extends Expr {
     Call(Expr callee, Token paren, List<Expr> arguments) {
@@ -57,6 +61,9 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+    int state;
+    int epoch;
+    Object[] cache;
   }
   static class Grouping extends Expr {
     Grouping(Expr expression) {
@@ -107,6 +114,9 @@ abstract class Expr {
     }
 
     final Token name;
+    int depth;
+    int slot;
+    int state;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
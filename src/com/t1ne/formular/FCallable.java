@@ -1,8 +1,23 @@
 package com.t1ne.formular;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 interface FCallable {
     int argsNum();
     Object call(Interpreter interpreter, List<Object> arguments);
-}
\ No newline at end of file
+
+    // Fixed-arity entry points, callables override them to take arguments without a list.
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, Collections.emptyList());
+    }
+
+    default Object call1(Interpreter interpreter, Object argument) {
+        return call(interpreter, Collections.singletonList(argument));
+    }
+
+    default Object call2(Interpreter interpreter, Object first, Object second) {
+        return call(interpreter, Arrays.asList(first, second));
+    }
+}
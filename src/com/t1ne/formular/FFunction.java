@@ -3,7 +3,14 @@ package com.t1ne.formular;
 import java.util.List;
 
 class FFunction implements FCallable {
-    private final Stmt.Function declaration;
+    // Calls after which the function is handed to the JIT compiler.
+    static final int JIT_THRESHOLD = 1000;
+
+    final Stmt.Function declaration;
+    private int calls = 0;
+    // Read once per call: another context sharing the function may deoptimize it meanwhile.
+    private volatile JitFunction compiled;
+
     FFunction(Stmt.Function declaration) {
         this.declaration = declaration;
     }
@@ -18,17 +25,119 @@ class FFunction implements FCallable {
         return "<fn " + declaration.name.lexeme + ">";
     }
 
+    // Counts the call and returns the compiled code that should run it, or null to interpret it.
+    private JitFunction compiled(Interpreter interpreter) {
+        JitFunction code = compiled;
+        if (code != null) return code;
+        if (calls < JIT_THRESHOLD && ++calls == JIT_THRESHOLD && interpreter.compiles()) {
+            code = Jit.compile(interpreter, this, declaration);
+            compiled = code;
+        }
+        return code;
+    }
+
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(interpreter.globals);
+        if (FlightEvents.CALLS) {
+            FlightEvents.FunctionCall event = FlightEvents.beginCall();
+            try {
+                return invoke(interpreter, arguments);
+            } finally {
+                FlightEvents.endCall(event, this, compiled != null);
+            }
+        }
+        return invoke(interpreter, arguments);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        if (FlightEvents.CALLS) {
+            FlightEvents.FunctionCall event = FlightEvents.beginCall();
+            try {
+                return invoke0(interpreter);
+            } finally {
+                FlightEvents.endCall(event, this, compiled != null);
+            }
+        }
+        return invoke0(interpreter);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object argument) {
+        if (FlightEvents.CALLS) {
+            FlightEvents.FunctionCall event = FlightEvents.beginCall();
+            try {
+                return invoke1(interpreter, argument);
+            } finally {
+                FlightEvents.endCall(event, this, compiled != null);
+            }
+        }
+        return invoke1(interpreter, argument);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object first, Object second) {
+        if (FlightEvents.CALLS) {
+            FlightEvents.FunctionCall event = FlightEvents.beginCall();
+            try {
+                return invoke2(interpreter, first, second);
+            } finally {
+                FlightEvents.endCall(event, this, compiled != null);
+            }
+        }
+        return invoke2(interpreter, first, second);
+    }
+
+    private Object invoke(Interpreter interpreter, List<Object> arguments) {
+        JitFunction code = compiled(interpreter);
+        if (code != null) return code.call(interpreter, arguments);
+        return interpret(interpreter, arguments);
+    }
+
+    private Object invoke0(Interpreter interpreter) {
+        JitFunction code = compiled(interpreter);
+        if (code != null) return code.call0(interpreter);
+        return run(interpreter, interpreter.pushFrame(declaration.slots));
+    }
+
+    private Object invoke1(Interpreter interpreter, Object argument) {
+        JitFunction code = compiled(interpreter);
+        if (code != null) return code.call1(interpreter, argument);
+        Environment frame = interpreter.pushFrame(declaration.slots);
+        frame.values[0] = argument;
+        return run(interpreter, frame);
+    }
+
+    private Object invoke2(Interpreter interpreter, Object first, Object second) {
+        JitFunction code = compiled(interpreter);
+        if (code != null) return code.call2(interpreter, first, second);
+        Environment frame = interpreter.pushFrame(declaration.slots);
+        frame.values[0] = first;
+        frame.values[1] = second;
+        return run(interpreter, frame);
+    }
+
+    Object interpret(Interpreter interpreter, List<Object> arguments) {
+        Environment frame = interpreter.pushFrame(declaration.slots);
         for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+            frame.values[i] = arguments.get(i);
         }
+        return run(interpreter, frame);
+    }
+
+    private Object run(Interpreter interpreter, Environment frame) {
         try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            return returnValue.value;
+            if (interpreter.executeBlock(declaration.body, frame) == Completion.RETURN) {
+                return interpreter.takeReturnValue();
+            }
+            return null;
+        } finally {
+            interpreter.popFrame(declaration.slots);
         }
-        return null;
     }
-}
\ No newline at end of file
+
+    // Called when the compiled code keeps failing its guards, the function stays interpreted.
+    void deoptimize() {
+        compiled = null;
+    }
+}
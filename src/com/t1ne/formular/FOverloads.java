@@ -0,0 +1,55 @@
+package com.t1ne.formular;
+
+import java.util.Arrays;
+
+/**
+ * Functions that share a name but take a different number of arguments. A set
+ * never changes once created: declaring another overload builds a new one, so
+ * call sites that cached the old set see a different callee.
+ */
+class FOverloads {
+    private final String name;
+    private final FCallable[] byArity;
+
+    private FOverloads(String name, FCallable[] byArity) {
+        this.name = name;
+        this.byArity = byArity;
+    }
+
+    // What a slot holds after declaring the function on top of its previous value.
+    static Object declare(Object previous, String name, FCallable function) {
+        FCallable[] byArity;
+        if (previous instanceof FOverloads) {
+            byArity = ((FOverloads) previous).byArity;
+        } else if (previous instanceof FCallable && ((FCallable) previous).argsNum() != function.argsNum()) {
+            byArity = new FCallable[((FCallable) previous).argsNum() + 1];
+            byArity[byArity.length - 1] = (FCallable) previous;
+        } else {
+            return function;
+        }
+
+        int arity = function.argsNum();
+        byArity = Arrays.copyOf(byArity, Math.max(byArity.length, arity + 1));
+        byArity[arity] = function;
+        return new FOverloads(name, byArity);
+    }
+
+    FCallable resolve(int arity) {
+        return arity < byArity.length ? byArity[arity] : null;
+    }
+
+    String arities() {
+        StringBuilder arities = new StringBuilder();
+        for (int i = 0; i < byArity.length; i++) {
+            if (byArity[i] == null) continue;
+            if (arities.length() > 0) arities.append(" або ");
+            arities.append(i);
+        }
+        return arities.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + name + ">";
+    }
+}
@@ -0,0 +1,106 @@
+package com.t1ne.formular;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes diagnostics into files of a directory on a background thread, so a
+ * run doesn't wait for the file system. The phase timings of a run go into
+ * diagnostics.txt; at the FULL level the trees go into their own files too,
+ * each rendered by the writer thread from the statements it was given.
+ */
+class FileDiagnostics implements Diagnostics {
+    private final Diagnostics.Level level;
+    private final Path directory;
+    // One thread, so files are written in the order they were reported.
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "FormulaR diagnostics");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<String> phases = new ArrayList<>();
+    private long total = 0;
+
+    FileDiagnostics(Diagnostics.Level level, Path directory) {
+        this.level = level;
+        this.directory = directory;
+    }
+
+    @Override
+    public boolean timings() {
+        return true;
+    }
+
+    @Override
+    public boolean dumps() {
+        return level == Diagnostics.Level.FULL;
+    }
+
+    @Override
+    public void phase(String phase, long nanos) {
+        phases.add(String.format(Locale.ROOT, "%-10s %10.3f ms", phase, nanos / 1e6));
+        total += nanos;
+    }
+
+    @Override
+    public void dump(String name, List<Stmt> statements) {
+        if (!dumps()) return;
+        write(name, out -> {
+            TreeView trees = new TreeView();
+            for (Stmt statement : statements) {
+                out.println(trees.print(statement));
+            }
+        });
+    }
+
+    @Override
+    public void dump(String name, String text) {
+        if (!dumps()) return;
+        write(name, out -> out.print(text));
+    }
+
+    @Override
+    public void finish() {
+        List<String> lines = new ArrayList<>(phases);
+        lines.add(String.format(Locale.ROOT, "%-10s %10.3f ms", "total", total / 1e6));
+        phases.clear();
+        total = 0;
+        write("diagnostics.txt", out -> lines.forEach(out::println));
+    }
+
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface Contents {
+        void writeTo(PrintWriter out);
+    }
+
+    private void write(String name, Contents contents) {
+        writer.execute(() -> {
+            try {
+                Files.createDirectories(directory);
+                try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(directory.resolve(name), StandardCharsets.UTF_8))) {
+                    contents.writeTo(out);
+                }
+            } catch (IOException error) {
+                System.err.println("Не вдалося записати " + directory.resolve(name) + ": " + error.getMessage());
+            }
+        });
+    }
+}
@@ -0,0 +1,112 @@
+package com.t1ne.formular;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events of the interpreter, recorded next to the JVM's
+ * own GC and JIT events. Loading an event class starts up the recorder, which
+ * takes longer than most scripts run, so the events are only created if the
+ * recorder was started with the JVM, or with -Dformular.jfr=true for a
+ * recording started later. Otherwise begin returns null and end ignores it.
+ */
+final class FlightEvents {
+    static final boolean ENABLED = FlightRecorder.isInitialized() || Boolean.getBoolean("formular.jfr");
+    // Function calls are only timed with -Dformular.jfr.calls=true, even when recording.
+    static final boolean CALLS = ENABLED && Boolean.getBoolean("formular.jfr.calls");
+
+    private FlightEvents() {}
+
+    static Phase beginPhase() {
+        if (!ENABLED) return null;
+        Phase event = new Phase();
+        event.begin();
+        return event;
+    }
+
+    static void endPhase(Phase event, String phase) {
+        if (event == null) return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.phase = phase;
+            event.commit();
+        }
+    }
+
+    static Recompute beginRecompute() {
+        if (!ENABLED) return null;
+        Recompute event = new Recompute();
+        event.begin();
+        return event;
+    }
+
+    static void endRecompute(Recompute event, Token variable, int formulas, boolean parallel) {
+        if (event == null) return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.variable = variable.lexeme;
+            event.formulas = formulas;
+            event.parallel = parallel;
+            event.commit();
+        }
+    }
+
+    static FunctionCall beginCall() {
+        FunctionCall event = new FunctionCall();
+        event.begin();
+        return event;
+    }
+
+    static void endCall(FunctionCall event, FFunction function, boolean compiled) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.function = function.declaration.name.lexeme;
+            event.compiled = compiled;
+            event.commit();
+        }
+    }
+
+    @Name("com.t1ne.formular.Phase")
+    @Label("Phase")
+    @Category("FormulaR")
+    @Description("A phase of running an input: scan, parse, optimize, resolve, execute and so on")
+    static class Phase extends Event {
+        @Label("Phase")
+        String phase;
+    }
+
+    @Name("com.t1ne.formular.Recompute")
+    @Label("Reactive Recompute")
+    @Category("FormulaR")
+    @Description("Formulas recomputed because a variable they depend on was assigned")
+    static class Recompute extends Event {
+        @Label("Variable")
+        String variable;
+
+        @Label("Formulas")
+        int formulas;
+
+        @Label("Parallel")
+        boolean parallel;
+    }
+
+    @Name("com.t1ne.formular.FunctionCall")
+    @Label("Function Call")
+    @Category("FormulaR")
+    @Description("A call of a user function that took longer than the threshold")
+    @Enabled(false)
+    @Threshold("1 ms")
+    static class FunctionCall extends Event {
+        @Label("Function")
+        String function;
+
+        @Label("Compiled")
+        boolean compiled;
+    }
+}
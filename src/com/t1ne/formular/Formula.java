@@ -0,0 +1,133 @@
+package com.t1ne.formular;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A formula that was scanned, parsed, optimized and resolved once, ready to be
+ * evaluated with different values of its free variables. The value of a formula
+ * is that of its top-level return or of its last expression, which may leave
+ * out the ';': "x * x + 1" is a formula. Evaluating prints nothing and writes
+ * no files; print statements are discarded.
+ *
+ * A formula can be evaluated from any number of threads at once: the program
+ * is shared, every thread gets an execution context of its own.
+ */
+public final class Formula {
+    private final Program program;
+    private final ThreadLocal<Interpreter> contexts;
+    // Column kernels of the formula by the names of the columns.
+    private final Map<List<String>, Batch> batches = new ConcurrentHashMap<>();
+
+    private Formula(Program program) {
+        this.program = program;
+        this.contexts = ThreadLocal.withInitial(program::newContext);
+    }
+
+    static Formula compile(String source) {
+        Errors errors = new Errors();
+        Interpreter interpreter = new Interpreter(new PrintStream(OutputStream.nullOutputStream()), errors);
+        List<Token> tokens = new Scanner(source, errors).scanTokens();
+        List<Stmt> statements = new Parser(tokens, errors).parseFormula();
+        if (!errors.messages.isEmpty()) throw new FormulaException(String.join("\n", errors.messages));
+
+        int last = statements.size() - 1;
+        if (last >= 0 && statements.get(last) instanceof Stmt.Expression) {
+            Token end = tokens.get(tokens.size() - 1);
+            Token keyword = new Token(TokenType.RETURN, "return", null, end.line);
+            statements.set(last, new Stmt.Return(keyword, ((Stmt.Expression) statements.get(last)).expression));
+        }
+        statements = new Optimizer(interpreter, true, null).optimize(statements);
+        return new Formula(new Program(interpreter, statements));
+    }
+
+    /**
+     * Evaluates the formula with the given variables, which may be numbers,
+     * strings, booleans or null. Bindings are variables, so one named sin
+     * leaves sin(x) the builtin. Every bound variable gets back what it held
+     * afterwards, a variable left out of the bindings is undefined. Runtime
+     * errors are thrown as a FormulaException.
+     */
+    public Object evaluate(Map<String, ?> bindings) {
+        Interpreter interpreter = contexts.get();
+        int[] slots = new int[bindings.size()];
+        // What the bound slots held before, restored afterwards.
+        Object[] previous = new Object[bindings.size()];
+        int bound = 0;
+        try {
+            for (Map.Entry<String, ?> binding : bindings.entrySet()) {
+                Object value = value(binding.getKey(), binding.getValue());
+                int slot = interpreter.globalSlot(binding.getKey());
+                slots[bound] = slot;
+                previous[bound++] = interpreter.globals.values[slot];
+                interpreter.globals.values[slot] = value;
+            }
+            return interpreter.run(program.statements);
+        } catch (RuntimeError error) {
+            String where = error.token == null ? "" : "  [Рядок " + error.token.line + "]";
+            throw new FormulaException(error.getMessage() + where);
+        } finally {
+            for (int i = bound - 1; i >= 0; i--) {
+                interpreter.globals.values[slots[i]] = previous[i];
+            }
+        }
+    }
+
+    /**
+     * Evaluates the formula once per row of the columns: result[i] is its value
+     * with names[k] bound to columns[k][i]. The formula has to be a single
+     * expression of numbers, + - * /, sin, cos, sqrt, pow and kvadrat; it is
+     * evaluated column by column on arrays instead of row by row. Any other
+     * variable is undefined, as with evaluate(Map). Throws an
+     * IllegalArgumentException for a formula that can't be evaluated this way
+     * or for columns of different lengths.
+     */
+    public double[] evaluate(String[] names, double[][] columns) {
+        if (names.length != columns.length) {
+            throw new IllegalArgumentException("Expected " + names.length + " columns but got " + columns.length);
+        }
+        Interpreter interpreter = contexts.get();
+        Batch batch = batches.computeIfAbsent(List.of(names), columnNames -> {
+            List<Stmt> statements = program.statements;
+            if (statements.size() != 1 || !(statements.get(0) instanceof Stmt.Return)
+                    || ((Stmt.Return) statements.get(0)).value == null) {
+                throw new IllegalArgumentException("Formula is not a single expression");
+            }
+            return Batch.compile(interpreter, columnNames, ((Stmt.Return) statements.get(0)).value);
+        });
+        try {
+            return batch.evaluate(interpreter, columns);
+        } catch (RuntimeError error) {
+            String where = error.token == null ? "" : "  [Рядок " + error.token.line + "]";
+            throw new FormulaException(error.getMessage() + where);
+        }
+    }
+
+    // Numbers of any Java type become the doubles FormulaR computes with.
+    private static Object value(String name, Object value) {
+        if (value instanceof Double || value instanceof String || value instanceof Boolean || value == null) {
+            return value;
+        }
+        if (value instanceof Number) return ((Number) value).doubleValue();
+        throw new IllegalArgumentException("Unsupported value of " + name + ": " + value.getClass().getName());
+    }
+
+    // Collects the errors of compiling, to be thrown together.
+    private static class Errors implements ErrorReporter {
+        final List<String> messages = new ArrayList<>();
+
+        @Override
+        public void error(int line, String where, String message) {
+            messages.add("[Рядок " + line + "] Помилка" + where + ": " + message);
+        }
+
+        @Override
+        public void runtimeError(RuntimeError error) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.t1ne.formular;
+
+/**
+ * A syntax error in a formula passed to FormulaR.compile, or a runtime error
+ * while evaluating one. The message is the one FormulaR would print.
+ */
+public class FormulaException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    FormulaException(String message) {
+        super(message);
+    }
+}
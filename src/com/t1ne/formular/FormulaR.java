@@ -3,18 +3,93 @@ package com.t1ne.formular;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 
 public class FormulaR {
-    private static final Interpreter interpreter = new Interpreter();
+    static final ErrorReporter CONSOLE = new ErrorReporter() {
+        @Override
+        public void error(int line, String where, String message) {
+            System.err.println("[Рядок " + line + "] Помилка" + where + ": " + message);
+            hadError = true;
+        }
+
+        @Override
+        public void runtimeError(RuntimeError error) {
+            // Builtins have no token of the call to point at.
+            String where = error.token == null ? "" : "  [Рядок " + error.token.line + "]";
+            System.err.println(error.getMessage() + where);
+            hadRuntimeError = true;
+        }
+    };
+
+    private static Interpreter interpreter;
+    private static VM vm;
+    private static boolean useVm = false;
+    // Set by --profile, reported when the script ends.
+    private static Profiler profiler = null;
+    // Where --profile=<file> writes the collapsed call stacks.
+    private static Path stacks = null;
+    // Rows of each table in the profile report.
+    private static final int REPORT_LIMIT = 20;
+    // Run a script while it is read.
+    private static boolean stream = false;
+    private static Diagnostics diagnostics = Diagnostics.OFF;
+    // Where optimized scripts are kept between runs, null without --cache.
+    private static ProgramCache cache = null;
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
 
     public static void main(String[] args) throws IOException {
+        List<String> files = new ArrayList<>();
+        Diagnostics.Level level = Diagnostics.Level.FULL;
+        Path directory = Paths.get("");
+        boolean profile = false;
+        for (String arg : args) {
+            if (arg.equals("--vm")) {
+                useVm = true;
+            } else if (arg.equals("--stream")) {
+                stream = true;
+            } else if (arg.startsWith("--diagnostics=")) {
+                level = level(arg.substring("--diagnostics=".length()));
+            } else if (arg.startsWith("--diagnostics-dir=")) {
+                directory = Paths.get(arg.substring("--diagnostics-dir=".length()));
+            } else if (arg.equals("--profile")) {
+                profile = true;
+            } else if (arg.startsWith("--profile=")) {
+                profile = true;
+                stacks = Paths.get(arg.substring("--profile=".length()));
+            } else if (arg.equals("--cache")) {
+                cache = new ProgramCache(Paths.get(".formular-cache"));
+            } else if (arg.startsWith("--cache=")) {
+                cache = new ProgramCache(Paths.get(arg.substring("--cache=".length())));
+            } else {
+                files.add(arg);
+            }
+        }
+        args = files.toArray(new String[0]);
+        if (level != Diagnostics.Level.OFF) diagnostics = new FileDiagnostics(level, directory);
+        if (profile) {
+            // Only the tree-walking interpreter is profiled, --vm is ignored.
+            ProfilingInterpreter profiling = new ProfilingInterpreter();
+            profiler = profiling.profiler;
+            interpreter = profiling;
+            useVm = false;
+        } else {
+            interpreter = new Interpreter();
+        }
+        vm = new VM(interpreter);
+
         if (args.length > 1) {
             System.out.println("Неправильний формат, для запуску в консольному режимі запускайте без параметрів\n" +
                     "Або передавайте посилання на файл зі скриптом, який ви хочете запустити");
@@ -26,63 +101,82 @@ public class FormulaR {
         }
     }
 
+    // Prints the profile and writes its call stacks, if the run was profiled.
+    private static void report() {
+        if (profiler == null) return;
+        profiler.report(System.err, REPORT_LIMIT);
+        if (stacks == null) return;
+        try {
+            profiler.writeStacks(stacks);
+        } catch (IOException error) {
+            System.err.println("Не вдалося записати стеки викликів у " + stacks + ": " + error.getMessage());
+        }
+    }
+
+    private static Diagnostics.Level level(String name) {
+        for (Diagnostics.Level level : Diagnostics.Level.values()) {
+            if (level.name().equalsIgnoreCase(name)) return level;
+        }
+        System.out.println("Невідомий рівень діагностики '" + name + "', можливі рівні: off, summary, full");
+        System.exit(64);
+        return null;
+    }
+
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        if (stream) {
+            runStream(path);
+        } else {
+            byte[] bytes = Files.readAllBytes(Paths.get(path));
+            new Session(interpreter, useVm ? vm : null, diagnostics, true, cache)
+                    .run(new String(bytes, Charset.defaultCharset()));
+        }
+        diagnostics.close();
+        report();
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
     }
 
+    private static void runStream(String path) throws IOException {
+        CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        Reader reader = Channels.newReader(FileChannel.open(Paths.get(path)), decoder, -1);
+        long start = System.nanoTime();
+        FlightEvents.Phase event = FlightEvents.beginPhase();
+        try {
+            new Pipeline(interpreter, useVm ? vm : null).run(reader);
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        }
+        FlightEvents.endPhase(event, "stream");
+        // Reading, parsing and execution overlap, so there is only one phase.
+        if (diagnostics.timings()) diagnostics.phase("stream", System.nanoTime() - start);
+        diagnostics.finish();
+    }
+
     private static void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
 
+        // One session for all the lines, each line only adds to what the earlier ones built.
+        Session session = new Session(interpreter, useVm ? vm : null, diagnostics, false);
         for (;;) {
             System.out.print("> ");
-            run(reader.readLine());
+            String line = reader.readLine();
+            if (line == null) break;
+            session.run(line);
             hadError = false;
         }
+        diagnostics.close();
+        report();
     }
 
-    private static void run(String source) throws IOException {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
-
-        // Stop if there was a syntax error.
-        if (hadError) return;
-        for (Stmt stmt : statements) {
-            System.out.println(new TreeView().print(stmt));
-        }
-        System.out.println("..................................");
-        List<Stmt> optimizedStmtsList = interpreter.optimize(statements);
-        for (Stmt stmt : optimizedStmtsList) {
-            System.out.println(new TreeView().print(stmt));
-        }
-        interpreter.interpret(optimizedStmtsList);
-    }
-
-    static void error(int line, String message) {
-        report(line, "", message);
-    }
-
-    private static void report(int line, String where, String message) {
-        System.err.println("[Рядок " + line + "] Помилка" + where + ": " + message);
-        hadError = true;
-    }
-
-    static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, " в кінці файлу", message);
-        } else {
-            report(token.line, " в '" + token.lexeme + "'", message);
-        }
-    }
-
-    static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + "  [Рядок " + error.token.line + "]");
-        hadRuntimeError = true;
+    /**
+     * Parses and optimizes a formula once, for evaluating it any number of
+     * times without printing trees or writing files. Syntax errors are thrown
+     * as a FormulaException.
+     */
+    public static Formula compile(String source) {
+        return Formula.compile(source);
     }
 }
@@ -0,0 +1,48 @@
+package com.t1ne.formular;
+
+/**
+ * Counters of every interpreter in the JVM, registered as
+ * com.t1ne.formular:type=FormulaR when it is started with -Dformular.jmx=true.
+ * They only grow, a dashboard watches how fast.
+ */
+public interface FormulaRMXBean {
+    // Statements the tree-walking interpreter executed.
+    long getStatementsExecuted();
+
+    // Reads of a variable in the frame of the running function.
+    long getLocalLookups();
+
+    // Reads of a global, the one step out of a frame a lookup can take.
+    long getGlobalLookups();
+
+    long getUserFunctionCalls();
+
+    long getBuiltinFunctionCalls();
+
+    // Formulas recomputed because a variable they depend on was assigned.
+    long getReactiveRecomputations();
+
+    // Calls whose call site already knew what the callee resolves to.
+    long getCallSiteCacheHits();
+
+    long getCallSiteCacheMisses();
+
+    double getCallSiteCacheHitRate();
+
+    // Scripts loaded from a program cache instead of being compiled.
+    long getProgramCacheHits();
+
+    long getProgramCacheMisses();
+
+    double getProgramCacheHitRate();
+
+    // Calls of diffPolynom that found their formula already parsed.
+    long getPolynomialCacheHits();
+
+    long getPolynomialCacheMisses();
+
+    double getPolynomialCacheHitRate();
+
+    // Environments created for globals, top-level blocks and call frames.
+    long getFramesAllocated();
+}
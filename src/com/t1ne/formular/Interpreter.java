@@ -1,182 +1,373 @@
 package com.t1ne.formular;
 
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.nio.charset.StandardCharsets;
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import static com.t1ne.formular.Specialization.*;
 import static java.lang.Math.pow;
 
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    final Environment globals = new Environment();
-    private Environment environment = globals;
+class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
+    private static final String NUMBERS = "Операнди повинні бути числами.";
+    private static final String NUMBERS_OR_STRINGS = "Операндами можуть бути лише два числа або два символьних рядки.";
+
+    final Environment globals;
+    // Shared by every context of a program: the global layout, the builtins and their caches.
+    private final Map<String, Integer> globalSlots;
+    final Map<String, FCallable> builtins;
+    // Formulas diffPolynom has already parsed.
+    final Polynomials polynomials;
+    final DependencyGraph dependencies = new DependencyGraph();
+    private Environment environment;
+    // Value of the last return statement, taken by the function that returns.
+    private Object returnValue;
+    // Bumped whenever a declaration replaces a function, drops every call site cache.
+    private int redefinitions = 0;
+    // Call frames are reused, nothing can keep a frame after its call returns.
+    private Environment[] frames = new Environment[16];
+    private int frameCount = 0;
+    // Where print statements write and where errors are reported.
+    final PrintStream out;
+    final ErrorReporter reporter;
 
     Interpreter() {
+        this(System.out, FormulaR.CONSOLE);
+    }
+
+    Interpreter(PrintStream out, ErrorReporter reporter) {
+        this.out = out;
+        this.reporter = reporter;
+        globals = Environment.globals(16);
+        environment = globals;
+        globalSlots = new ConcurrentHashMap<>();
+        builtins = new HashMap<>();
+        polynomials = new Polynomials();
+
         //core library funcs
-        // _* must be added to name, where * is arguments number due to function overloading strategy
-        globals.define("sin_1", new FCallable() {
+        define("sin", new FCallable() {
             @Override
             public int argsNum() { return 1; }
 
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments) {
-                return Math.sin((double)arguments.get(0));
+                return call1(interpreter, arguments.get(0));
+            }
+
+            @Override
+            public Object call1(Interpreter interpreter, Object argument) {
+                return Math.sin((double)argument);
             }
 
             @Override
             public String toString() { return "<вбудована функція sin>"; }
         });
 
-        globals.define("cos_1", new FCallable() {
+        define("cos", new FCallable() {
             @Override
             public int argsNum() { return 1; }
 
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments) {
-                return Math.cos((double)arguments.get(0));
+                return call1(interpreter, arguments.get(0));
+            }
+
+            @Override
+            public Object call1(Interpreter interpreter, Object argument) {
+                return Math.cos((double)argument);
             }
 
             @Override
             public String toString() { return "<вбудована функція cos>"; }
         });
 
-        globals.define("pow_2", new FCallable() {
+        define("pow", new FCallable() {
             @Override
             public int argsNum() { return 2; }
 
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments) {
-                return pow((double)arguments.get(0), (double)arguments.get(1));
+                return call2(interpreter, arguments.get(0), arguments.get(1));
+            }
+
+            @Override
+            public Object call2(Interpreter interpreter, Object first, Object second) {
+                return pow((double)first, (double)second);
             }
 
             @Override
             public String toString() { return "<вбудована функція pow>"; }
         });
 
-        globals.define("sqrt_1", new FCallable() {
+        define("sqrt", new FCallable() {
             @Override
             public int argsNum() { return 1; }
 
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments) {
-                return Math.sqrt((double)arguments.get(0));
+                return call1(interpreter, arguments.get(0));
+            }
+
+            @Override
+            public Object call1(Interpreter interpreter, Object argument) {
+                return Math.sqrt((double)argument);
             }
 
             @Override
             public String toString() { return "<вбудована функція sqrt>"; }
         });
 
-        globals.define("kvadrat_1", new FCallable() {
+        define("kvadrat", new FCallable() {
             @Override
             public int argsNum() { return 1; }
 
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments) {
-                return pow((double)arguments.get(0),2);
+                return call1(interpreter, arguments.get(0));
+            }
+
+            @Override
+            public Object call1(Interpreter interpreter, Object argument) {
+                return pow((double)argument,2);
             }
 
             @Override
             public String toString() { return "<вбудована функція kvadrat>"; }
         });
 
-        globals.define("diffLn_1", new FCallable() {
+        define("diffLn", new FCallable() {
             @Override
             public int argsNum() { return 1; }
 
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments) {
-                return 1/Math.log((double)arguments.get(0));
+                return call1(interpreter, arguments.get(0));
+            }
+
+            @Override
+            public Object call1(Interpreter interpreter, Object argument) {
+                return 1/Math.log((double)argument);
             }
 
             @Override
             public String toString() { return "<вбудована функція differentiatePolynomial>"; }
         });
 
-        globals.define("diffLog_2", new FCallable() {
+        define("diffLog", new FCallable() {
             @Override
             public int argsNum() { return 2; }
 
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments) {
-                return 1/Math.log((double)arguments.get(0));
+                return call2(interpreter, arguments.get(0), arguments.get(1));
+            }
+
+            @Override
+            public Object call2(Interpreter interpreter, Object first, Object second) {
+                return 1/Math.log((double)first);
             }
 
             @Override
             public String toString() { return "<вбудована функція differentiatePolynomial>"; }
         });
 
-        globals.define("diffPolynom_2", new FCallable() {
+        define("diffPolynom", new FCallable() {
             @Override
             public int argsNum() { return 2; }
 
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments) {
-                double answer = 0;
-                String nextChar = "+";
-                String formula = (String)arguments.get(0);
-                String[] parts = formula.split(" ");
-                for (String part : parts) {
-                    if (!part.equals("+") && !part.equals("-")) {
-                        StringBuilder coeffStr = new StringBuilder();
-                        int i;
-                        for (i = 0; part.charAt(i) != 'x'; i++)
-                            coeffStr.append(part.charAt(i));
-                        int coeff = Integer.parseInt(coeffStr.toString());
-                        StringBuilder powStr = new StringBuilder();
-                        for (i = i + 2; i != part.length(); i++)
-                            powStr.append(part.charAt(i));
-                        int pow = Integer.parseInt(powStr.toString());
-                        if (nextChar.equals("+"))
-                            answer += coeff * pow * pow((double) arguments.get(1), pow - 1);
-                        else
-                            answer -= coeff * pow * pow((double) arguments.get(1), pow - 1);
-                    }
-                    if (part.equals("+")) {
-                        nextChar = "+";
-                    } else if (part.equals("-")) {
-                        nextChar = "-";
-                    }
-                }
-                return answer;
+                return call2(interpreter, arguments.get(0), arguments.get(1));
+            }
+
+            @Override
+            public Object call2(Interpreter interpreter, Object first, Object second) {
+                return polynomials.derivative((String) first, (double) second);
             }
 
             @Override
             public String toString() { return "<вбудована функція differentiatePolynomial>"; }
         });
+
+        define("diff", new Derivatives());
     }
 
-    void interpret(List<Stmt> statements) {
-        try {
-            for (Stmt statement : statements) {
-                execute(statement);
+    /**
+     * Another execution context for the programs resolved against the given
+     * interpreter. It shares the global layout, the builtins and their caches,
+     * but has globals, frames and reactive state of its own, so contexts can
+     * run the same program on different threads.
+     */
+    Interpreter(Interpreter program) {
+        this(program, Environment.globals(program.globalSlots.size()));
+        for (Map.Entry<String, FCallable> builtin : builtins.entrySet()) {
+            globals.define(globalSlot(Resolver.functionKey(builtin.getKey())), builtin.getValue());
+        }
+    }
+
+    private Interpreter(Interpreter program, Environment globals) {
+        out = program.out;
+        reporter = program.reporter;
+        globalSlots = program.globalSlots;
+        builtins = program.builtins;
+        polynomials = program.polynomials;
+        redefinitions = program.redefinitions;
+        this.globals = globals;
+        environment = globals;
+    }
+
+    /**
+     * A context that works on the globals of this one, for recomputing
+     * formulas on another thread while this context waits for it.
+     */
+    Interpreter worker() {
+        return new Interpreter(this, globals);
+    }
+
+    // Whether functions called often enough are compiled to bytecode.
+    boolean compiles() {
+        return true;
+    }
+
+    private void define(String name, FCallable function) {
+        builtins.put(name, function);
+        globals.define(globalSlot(Resolver.functionKey(name)), function);
+    }
+
+    // Whether the global already has a value, a builtin or one from earlier input.
+    boolean isDefined(String key) {
+        Integer slot = globalSlots.get(key);
+        return slot != null && slot < globals.values.length && globals.values[slot] != Environment.UNDEFINED;
+    }
+
+    int globalSlot(String name) {
+        Integer slot = globalSlots.get(name);
+        if (slot == null) {
+            synchronized (globalSlots) {
+                slot = globalSlots.computeIfAbsent(name, key -> globalSlots.size());
             }
+        }
+        // Another context may have added the slot.
+        globals.ensureCapacity(slot + 1);
+        return slot;
+    }
+
+    // Returns false if a top-level return or a runtime error ended the script early.
+    boolean interpret(List<Stmt> statements) {
+        try {
+            if (runScript(statements) == Completion.NORMAL) return true;
+            takeReturnValue();
         } catch (RuntimeError error) {
-            FormulaR.runtimeError(error);
+            reporter.runtimeError(error);
+        }
+        return false;
+    }
+
+    // Runs a script and returns the value of its top-level return, if it has one.
+    Object run(List<Stmt> statements) {
+        return runScript(statements) == Completion.RETURN ? takeReturnValue() : null;
+    }
+
+    private Completion runScript(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            // A return at the top level ends the script, like in the VM.
+            if (execute(statement) == Completion.RETURN) return Completion.RETURN;
+            react(statement);
         }
+        return Completion.NORMAL;
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    // Top-level declarations and assignments update every variable whose formula depends on them.
+    private void react(Stmt statement) {
+        Token name;
+        int slot;
+        Expr formula;
+        if (statement instanceof Stmt.Var) {
+            name = ((Stmt.Var) statement).name;
+            slot = ((Stmt.Var) statement).slot;
+            formula = ((Stmt.Var) statement).initializer;
+        } else if (statement instanceof Stmt.Expression
+                && ((Stmt.Expression) statement).expression instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign) ((Stmt.Expression) statement).expression;
+            if (assign.depth != Resolver.GLOBAL) return;
+            name = assign.name;
+            slot = assign.slot;
+            formula = assign.value;
+        } else {
+            return;
+        }
+
+        List<DependencyGraph.Node> affected = dependencies.update(slot, formula);
+        if (affected.isEmpty()) return;
+        if (Metrics.ENABLED) Metrics.RECOMPUTATIONS.add(affected.size());
+        FlightEvents.Recompute event = FlightEvents.beginRecompute();
+        boolean parallel = ParallelUpdate.recompute(this, affected);
+        if (!parallel) recompute(affected, 0, affected.size());
+        FlightEvents.endRecompute(event, name, affected.size(), parallel);
+    }
+
+    // Recomputes the variables from..to-1 of a topologically ordered list.
+    void recompute(List<DependencyGraph.Node> nodes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            DependencyGraph.Node node = nodes.get(i);
+            globals.values[node.slot] = evaluate(node.formula);
+        }
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    Completion execute(Stmt stmt) {
+        if (Metrics.ENABLED) Metrics.STATEMENTS.increment();
+        return stmt.accept(this);
+    }
+
+    Completion executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
-
-            for (Stmt statement : statements) {
-                execute(statement);
-            }
+            return executeStatements(statements);
         } finally {
             this.environment = previous;
         }
     }
 
+    private Completion executeStatements(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            Completion completion = execute(statement);
+            if (completion != Completion.NORMAL) return completion;
+        }
+        return Completion.NORMAL;
+    }
+
+    Object takeReturnValue() {
+        Object value = returnValue;
+        returnValue = null;
+        return value;
+    }
+
+    Environment pushFrame(int size) {
+        if (frameCount == frames.length) frames = Arrays.copyOf(frames, frameCount * 2);
+        Environment frame = frames[frameCount];
+        if (frame == null || frame.values.length < size) {
+            frame = new Environment(size);
+            frames[frameCount] = frame;
+        }
+        frameCount++;
+        return frame;
+    }
+
+    // Clears the slots so the next call starts with nil locals, like a fresh frame.
+    void popFrame(int size) {
+        Arrays.fill(frames[--frameCount].values, 0, size, null);
+    }
+
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        if (environment == globals) {
+            return executeBlock(stmt.statements, new Environment(stmt.slots));
+        }
+        return executeStatements(stmt.statements);
     }
 
     @Override
@@ -186,14 +377,11 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
-
         switch (expr.operator.type) {
             case EXCL:
-                return !isTruthy(right);
+                return !isTruthy(evaluate(expr.right));
             case MINUS:
-                checkNumberOperand(expr.operator, right);
-                return -(double)right;
+                return -number(expr.right, expr.operator, "Операнд повинен бути числом.");
         }
 
         // Unreachable.
@@ -202,27 +390,32 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return environment.get(expr.name);
+        if (Metrics.ENABLED) Metrics.lookup(expr.depth == Resolver.GLOBAL);
+        if (expr.depth == Resolver.GLOBAL) {
+            Object value = globals.values[expr.slot];
+            if (value == Environment.UNDEFINED) throw undefined(expr.name);
+            return value;
+        }
+        return environment.values[expr.slot];
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
-        if (operand instanceof Double) return;
-        throw new RuntimeError(operator, "Операнд повинен бути числом.");
+    private RuntimeError undefined(Token name) {
+        return new RuntimeError(name, "Нерозпізнана змінна '" + name.lexeme + "'.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    static void checkNumberOperands(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
 
-        throw new RuntimeError(operator, "Операнди повинні бути числами.");
+        throw new RuntimeError(operator, NUMBERS);
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         // nil is only equal to nil.
         if (a == null && b == null) return true;
         if (a == null) return false;
@@ -230,7 +423,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         // Hack. Work around Java adding ".0" to integer-valued doubles.
@@ -255,93 +448,128 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        FFunction function = new FFunction(stmt);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        // One function per declaration, so running a declaration again changes nothing
+        // and compiled code and call site caches stay valid in every context.
+        FFunction function = stmt.function;
+        if (function == null) {
+            // Racing threads may each create one, any of them will do.
+            function = new FFunction(stmt);
+            stmt.function = function;
+        }
+        Object previous = environment.values[stmt.slot];
+        if (previous == function || previous instanceof FOverloads && ((FOverloads) previous).resolve(function.argsNum()) == function) {
+            return Completion.NORMAL;
+        }
+        if (previous instanceof FCallable || previous instanceof FOverloads) redefinitions++;
+        environment.define(stmt.slot, stmt.overloads ? FOverloads.declare(previous, stmt.name.lexeme, function) : function);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Completion visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Completion visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
-        return null;
+        out.println(stringify(value));
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
         if (stmt.value != null) value = evaluate(stmt.value);
 
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        environment.define(stmt.slot, value);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Completion visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+            Completion completion = execute(stmt.body);
+            if (completion != Completion.NORMAL) return completion;
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
 
-        environment.assign(expr.name, value);
+        if (expr.depth == Resolver.GLOBAL) {
+            if (globals.values[expr.slot] == Environment.UNDEFINED) throw undefined(expr.name);
+            globals.values[expr.slot] = value;
+        } else {
+            environment.values[expr.slot] = value;
+        }
         return value;
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
-
         switch (expr.operator.type) {
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left > (double)right;
+                return left(expr, NUMBERS) > number(expr.right, expr.operator);
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left >= (double)right;
+                return left(expr, NUMBERS) >= number(expr.right, expr.operator);
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left < (double)right;
+                return left(expr, NUMBERS) < number(expr.right, expr.operator);
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left <= (double)right;
+                return left(expr, NUMBERS) <= number(expr.right, expr.operator);
+            case MINUS:
+            case SLASH:
+            case STAR:
+                return arithmetic(expr);
+            case PLUS:
+                if (expr.numeric) return arithmetic(expr);
+        }
+
+        if (expr.state == DOUBLE) {
+            try {
+                return expr.operator.type == TokenType.PLUS ? doublePlus(expr) : doubleEquality(expr);
+            } catch (UnexpectedResult result) {
+                return result.value;
+            }
+        }
+
+        Object left = evaluate(expr.left);
+        Object right = evaluate(expr.right);
+        if (expr.state == UNINITIALIZED) {
+            expr.state = left instanceof Double && right instanceof Double ? DOUBLE : GENERIC;
+        }
+        return generic(expr, left, right);
+    }
+
+    private Object generic(Expr.Binary expr, Object left, Object right) {
+        switch (expr.operator.type) {
             case EXCL_EQUAL: return !isEqual(left, right);
             case EQUAL_EQUAL: return isEqual(left, right);
-            case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left - (double)right;
             case PLUS:
                 if (left instanceof Double && right instanceof Double) {
                     return (double)left + (double)right;
@@ -351,100 +579,225 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                     return (String)left + (String)right;
                 }
 
-                throw new RuntimeError(expr.operator, "Операндами можуть бути лише два числа або два символьних рядки.");
+                throw new RuntimeError(expr.operator, NUMBERS_OR_STRINGS);
+        }
+
+        // Unreachable.
+        return null;
+    }
+
+    // Specialized '+' of a node that has only seen numbers. Rewrites the node to the
+    // generic state and throws the generic result once an operand is not a number.
+    private double doublePlus(Expr.Binary expr) {
+        double left;
+        try {
+            left = speculate(expr.left);
+        } catch (UnexpectedResult result) {
+            expr.state = GENERIC;
+            throw new UnexpectedResult(generic(expr, result.value, evaluate(expr.right)));
+        }
+        try {
+            return left + speculate(expr.right);
+        } catch (UnexpectedResult result) {
+            expr.state = GENERIC;
+            throw new UnexpectedResult(generic(expr, left, result.value));
+        }
+    }
+
+    private boolean doubleEquality(Expr.Binary expr) {
+        double left;
+        double right;
+        try {
+            left = speculate(expr.left);
+        } catch (UnexpectedResult result) {
+            expr.state = GENERIC;
+            throw new UnexpectedResult(generic(expr, result.value, evaluate(expr.right)));
+        }
+        try {
+            right = speculate(expr.right);
+        } catch (UnexpectedResult result) {
+            expr.state = GENERIC;
+            throw new UnexpectedResult(generic(expr, left, result.value));
+        }
+        // Same as Double.equals, which isEqual uses.
+        boolean equal = Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+        return expr.operator.type == TokenType.EQUAL_EQUAL ? equal : !equal;
+    }
+
+    // Numeric subtrees are evaluated on primitive doubles, only the final result gets boxed.
+    private double arithmetic(Expr.Binary expr) {
+        switch (expr.operator.type) {
+            case PLUS:
+                return left(expr, NUMBERS_OR_STRINGS) + number(expr.right, expr.operator, NUMBERS_OR_STRINGS);
+            case MINUS:
+                return left(expr, NUMBERS) - number(expr.right, expr.operator);
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left / (double)right;
+                return left(expr, NUMBERS) / number(expr.right, expr.operator);
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left * (double)right;
+                return left(expr, NUMBERS) * number(expr.right, expr.operator);
         }
 
         // Unreachable.
-        return null;
+        return 0;
+    }
+
+    // The left operand of a numeric operator. If it isn't a number the right one
+    // is still evaluated before the error, for its side effects, as the VM does.
+    private double left(Expr.Binary expr, String message) {
+        try {
+            return speculate(expr.left);
+        } catch (UnexpectedResult result) {
+            if (result.value instanceof Double) return (double) result.value;
+            evaluate(expr.right);
+            throw new RuntimeError(expr.operator, message);
+        }
+    }
+
+    private double number(Expr operand, Token operator) {
+        return number(operand, operator, NUMBERS);
+    }
+
+    private double number(Expr operand, Token operator, String message) {
+        try {
+            return speculate(operand);
+        } catch (UnexpectedResult result) {
+            if (result.value instanceof Double) return (double) result.value;
+            throw new RuntimeError(operator, message);
+        }
+    }
+
+    // Evaluates an operand as a primitive double, throws UnexpectedResult with the value otherwise.
+    private double speculate(Expr operand) {
+        if (operand instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) operand;
+            if (binary.numeric) return arithmetic(binary);
+            if (binary.state == DOUBLE && binary.operator.type == TokenType.PLUS) return doublePlus(binary);
+        } else if (operand instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) operand;
+            if (variable.state == DOUBLE) {
+                // Read the slot directly instead of going through accept().
+                if (Metrics.ENABLED) Metrics.lookup(variable.depth == Resolver.GLOBAL);
+                Object value = variable.depth == Resolver.GLOBAL
+                        ? globals.values[variable.slot]
+                        : environment.values[variable.slot];
+                if (value instanceof Double) return (double) value;
+                variable.state = GENERIC;
+            } else if (variable.state == UNINITIALIZED) {
+                Object value = evaluate(variable);
+                variable.state = value instanceof Double ? DOUBLE : GENERIC;
+                if (value instanceof Double) return (double) value;
+                throw new UnexpectedResult(value);
+            }
+        } else if (operand instanceof Expr.Literal && ((Expr.Literal) operand).value instanceof Double) {
+            return (double) ((Expr.Literal) operand).value;
+        } else if (operand instanceof Expr.Grouping) {
+            return speculate(((Expr.Grouping) operand).expression);
+        } else if (operand instanceof Expr.Unary && ((Expr.Unary) operand).operator.type == TokenType.MINUS) {
+            Expr.Unary unary = (Expr.Unary) operand;
+            return -number(unary.right, unary.operator, "Операнд повинен бути числом.");
+        }
+
+        Object value = evaluate(operand);
+        if (value instanceof Double) return (double) value;
+        throw new UnexpectedResult(value);
     }
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
         Object callee = evaluate(expr.callee);
 
+        // Calls with few arguments pass them directly instead of in a list.
+        switch (expr.arguments.size()) {
+            case 0:
+                return target(expr, callee).call0(this);
+            case 1: {
+                Object argument = evaluate(expr.arguments.get(0));
+                return target(expr, callee).call1(this, argument);
+            }
+            case 2: {
+                Object first = evaluate(expr.arguments.get(0));
+                Object second = evaluate(expr.arguments.get(1));
+                return target(expr, callee).call2(this, first, second);
+            }
+        }
+
         List<Object> arguments = new ArrayList<>();
         for (Expr argument : expr.arguments) {
             arguments.add(evaluate(argument));
         }
 
-        if (!(callee instanceof FCallable)) {
-            throw new RuntimeError(expr.paren,"Викликати можливо лише функції.");
-        }
+        return target(expr, callee).call(this, arguments);
+    }
 
-        FCallable function = (FCallable)callee;
+    // Call sites cache what each callee resolved to, so repeated calls skip overload
+    // resolution and the arity check. Sites that see too many callees go generic.
+    FCallable target(Expr.Call expr, Object callee) {
+        if (expr.epoch != redefinitions) {
+            expr.epoch = redefinitions;
+            expr.state = UNINITIALIZED;
+            expr.cache = null;
+        }
 
-        if (arguments.size() != function.argsNum()) {
-            throw new RuntimeError(expr.paren, "Очікується " +
-                    function.argsNum() + " аргументів але отримано " +
-                    arguments.size() + ".");
-        }
-        return function.call(this, arguments);
-    }
-
-    public List<Stmt> optimize(List<Stmt> statements) throws IOException {
-        List<Stmt> optList = new ArrayList<>();
-        TreeView astPrinter = new TreeView();
-        PrintWriter astFile = new PrintWriter("optimization.txt", StandardCharsets.UTF_8);
-        for (Stmt stmt: statements) {
-            if (stmt instanceof Stmt.While) {
-                Stmt.While temp = (Stmt.While)stmt;
-                if (temp.condition instanceof Expr.Literal) {
-                    if (!(boolean) temp.condition.accept(this)) {
-                        astFile.println("\nBefore: ");
-                        astFile.println(astPrinter.print(stmt));
-                        astFile.println("\nAfter: ");
-                        astFile.println("Statement was removed (loop body will never execute)\n");
-                        astFile.println("/**************************************************************************/");
-                        continue;
-                    }
-                }
-                else if (temp.body instanceof Stmt.Block) {
-                    astFile.println("\nBefore: ");
-                    astFile.println(astPrinter.print(stmt));
-                    astFile.println("\nAfter: ");
-                    Stmt.Block tempBlock = (Stmt.Block) temp.body;
-                    if (tempBlock.statements.size() == 0) {
-                        astFile.println("Statement was removed (loop body is empty)\n");
-                        astFile.println("/**************************************************************************/");
-                    } else if (tempBlock.statements.size() == 1) {
-                        Stmt.While newLoop = new Stmt.While(temp.condition, tempBlock.statements.get(0));
-                        optList.add(newLoop);
-                        astFile.println(astPrinter.print(newLoop));
-                        astFile.println("/**************************************************************************/");
-                    } else {
-                        optList.add(stmt);
+        // Callees and their targets alternate in one array that is never changed once
+        // published, so a thread sharing the tree can't pair a callee with another's target.
+        Object[] cache = expr.cache;
+        if (cache != null) {
+            for (int i = 0; i < cache.length; i += 2) {
+                if (cache[i] == callee && cache[i + 1] != null) {
+                    if (Metrics.ENABLED) {
+                        Metrics.CALL_SITE_HITS.increment();
+                        Metrics.call((FCallable) cache[i + 1]);
                     }
+                    return (FCallable) cache[i + 1];
                 }
             }
-            else if (stmt instanceof Stmt.If) {
-                Stmt.If temp = (Stmt.If)stmt;
-                astFile.println("\nBefore: ");
-                astFile.println(astPrinter.print(stmt));
-                astFile.println("\nAfter: ");
-                if ((boolean)temp.condition.accept(this)) {
-                    optList.add(temp.thenBranch);
-                    astFile.println(astPrinter.print(temp.thenBranch));
-                }
-                else if (temp.elseBranch != null) {
-                    optList.add(temp.elseBranch);
-                    astFile.println(astPrinter.print(temp.elseBranch));
-                }
-                else {
-                    astFile.println("Statement was removed (condition is false and no else block provided)\n");
-                }
-                astFile.println("/**************************************************************************/");
-            }
-            else {
-                optList.add(stmt);
+        }
+
+        FCallable target = callable(callee, expr.arguments.size(), expr.paren);
+        if (Metrics.ENABLED) {
+            Metrics.CALL_SITE_MISSES.increment();
+            Metrics.call(target);
+        }
+        if (expr.state == UNINITIALIZED) {
+            expr.state = MONOMORPHIC;
+            expr.cache = new Object[] {callee, target};
+        } else if (expr.state != GENERIC && cache != null && cache.length < 2 * POLYMORPHIC_LIMIT) {
+            Object[] grown = Arrays.copyOf(cache, cache.length + 2);
+            grown[cache.length] = callee;
+            grown[cache.length + 1] = target;
+            expr.state = POLYMORPHIC;
+            expr.cache = grown;
+        } else {
+            expr.state = GENERIC;
+            expr.cache = null;
+        }
+        return target;
+    }
+
+    // The function a call with this many arguments runs, picking the overload by arity.
+    static FCallable callable(Object callee, int count, Token paren) {
+        if (callee instanceof FOverloads) {
+            FOverloads overloads = (FOverloads) callee;
+            FCallable function = overloads.resolve(count);
+            if (function == null) {
+                throw new RuntimeError(paren, "Очікується " +
+                        overloads.arities() + " аргументів але отримано " +
+                        count + ".");
             }
+            return function;
+        }
+
+        if (!(callee instanceof FCallable)) {
+            throw new RuntimeError(paren,"Викликати можливо лише функції.");
+        }
+
+        FCallable function = (FCallable)callee;
+
+        if (count != function.argsNum()) {
+            throw new RuntimeError(paren, "Очікується " +
+                    function.argsNum() + " аргументів але отримано " +
+                    count + ".");
         }
-        astFile.close();
-        return optList;
+        return function;
     }
 }
@@ -0,0 +1,439 @@
+package com.t1ne.formular;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles hot user functions to JVM bytecode, loaded as hidden classes, so
+ * HotSpot can optimize formulas like ordinary Java code. Only pure numeric
+ * functions are compiled: parameters, locals and globals are doubles, the only
+ * calls are to the function itself and to the math builtins, and the body has
+ * no print, global assignment or nested declaration. Anything else leaves the
+ * function to the interpreter.
+ */
+class Jit implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final String SELF = "com/t1ne/formular/JitCode";
+    private static final String BASE = "com/t1ne/formular/JitFunction";
+    private static final String OBJECTS = "[Ljava/lang/Object;";
+    private static final String CONSTRUCTOR = "(Lcom/t1ne/formular/FFunction;[Ljava/lang/Object;)V";
+
+    private static final int ICONST_0 = 0x03;
+    private static final int DCONST_0 = 0x0e;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC2_W = 0x14;
+    private static final int DLOAD = 0x18;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ALOAD_2 = 0x2c;
+    private static final int ALOAD_3 = 0x2d;
+    private static final int AALOAD = 0x32;
+    private static final int DSTORE = 0x39;
+    private static final int POP2 = 0x58;
+    private static final int DUP2 = 0x5c;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6b;
+    private static final int DDIV = 0x6f;
+    private static final int DNEG = 0x77;
+    private static final int LCMP = 0x94;
+    private static final int DCMPL = 0x97;
+    private static final int DCMPG = 0x98;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int IFLT = 0x9b;
+    private static final int IFGE = 0x9c;
+    private static final int IFGT = 0x9d;
+    private static final int IFLE = 0x9e;
+    private static final int GOTO = 0xa7;
+    private static final int DRETURN = 0xaf;
+    private static final int ARETURN = 0xb0;
+    private static final int RETURN = 0xb1;
+    private static final int GETSTATIC = 0xb2;
+    private static final int GETFIELD = 0xb4;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int ATHROW = 0xbf;
+
+    // Builtins that are plain java.lang.Math calls, by their name.
+    private static final Map<String, String> MATH = new HashMap<>();
+    static {
+        MATH.put("sin", "sin");
+        MATH.put("cos", "cos");
+        MATH.put("sqrt", "sqrt");
+        MATH.put("pow", "pow");
+        MATH.put("kvadrat", "pow");
+    }
+
+    private final Interpreter interpreter;
+    private final FFunction function;
+    private final Stmt.Function declaration;
+    private final ClassBuilder builder = new ClassBuilder(SELF, BASE);
+    private final String descriptor;
+    private ClassBuilder.Code code;
+    private final List<Object> targets = new ArrayList<>();
+
+    private Jit(Interpreter interpreter, FFunction function, Stmt.Function declaration) {
+        this.interpreter = interpreter;
+        this.function = function;
+        this.declaration = declaration;
+        StringBuilder descriptor = new StringBuilder("(" + OBJECTS);
+        for (int i = 0; i < declaration.params.size(); i++) descriptor.append('D');
+        this.descriptor = descriptor.append(")D").toString();
+    }
+
+    // Returns the compiled function, or null if the body is outside the compilable subset.
+    static JitFunction compile(Interpreter interpreter, FFunction function, Stmt.Function declaration) {
+        Jit jit = new Jit(interpreter, function, declaration);
+        try {
+            byte[] bytes = jit.generate();
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return (JitFunction) lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class, FFunction.class, Object[].class))
+                    .invoke(function, jit.targets.toArray());
+        } catch (Throwable e) {
+            // Unsupported body, or code the JVM refused to load: the interpreter keeps the function.
+            return null;
+        }
+    }
+
+    private byte[] generate() {
+        ClassBuilder.Code constructor = builder.method(ClassBuilder.ACC_PUBLIC, "<init>", CONSTRUCTOR);
+        constructor.op(ALOAD_0, 1);
+        constructor.op(ALOAD_1, 1);
+        constructor.op(ALOAD_2, 1);
+        constructor.op2(INVOKESPECIAL, builder.methodRef(BASE, "<init>", CONSTRUCTOR), -3);
+        constructor.op(RETURN, 0);
+        constructor.finish(3);
+
+        int arity = declaration.params.size();
+        ClassBuilder.Code invoke = builder.method(0, "invoke", "(" + OBJECTS + "Ljava/util/List;)Ljava/lang/Object;");
+        invoke.op(ALOAD_0, 1);
+        invoke.op(ALOAD_1, 1);
+        for (int i = 0; i < arity; i++) {
+            invoke.op(ALOAD_2, 1);
+            pushInt(invoke, i);
+            invoke.invokeInterface(builder.interfaceMethodRef("java/util/List", "get", "(I)Ljava/lang/Object;"), 1, -1);
+            invoke.op2(INVOKESTATIC, builder.methodRef(BASE, "number", "(Ljava/lang/Object;)D"), 1);
+        }
+        invoke.op2(INVOKEVIRTUAL, builder.methodRef(SELF, "run", descriptor), -(2 + 2 * arity) + 2);
+        invoke.op2(INVOKESTATIC, builder.methodRef("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;"), -1);
+        invoke.op(ARETURN, -1);
+        invoke.finish(3);
+
+        if (arity <= 2) {
+            ClassBuilder.Code fixed = builder.method(0, "invoke", "(" + OBJECTS + "Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+            fixed.op(ALOAD_0, 1);
+            fixed.op(ALOAD_1, 1);
+            for (int i = 0; i < arity; i++) {
+                fixed.op(ALOAD_2 + i, 1);
+                fixed.op2(INVOKESTATIC, builder.methodRef(BASE, "number", "(Ljava/lang/Object;)D"), 1);
+            }
+            fixed.op2(INVOKEVIRTUAL, builder.methodRef(SELF, "run", descriptor), -(2 + 2 * arity) + 2);
+            fixed.op2(INVOKESTATIC, builder.methodRef("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;"), -1);
+            fixed.op(ARETURN, -1);
+            fixed.finish(4);
+        }
+
+        code = builder.method(0, "run", descriptor);
+        for (Stmt statement : declaration.body) {
+            compile(statement);
+        }
+        // Falling off the end returns nil, which only the interpreter can produce.
+        code.op2(GETSTATIC, builder.fieldRef(BASE, "DEOPTIMIZE", "Lcom/t1ne/formular/JitFunction$Deoptimization;"), 1);
+        code.op(ATHROW, -1);
+        if (local(declaration.slots) > 255) throw new Unsupported();
+        code.finish(local(declaration.slots));
+        return builder.toBytes();
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    // JVM local of a frame slot: 0 is this, 1 the globals array, then two words per double.
+    private static int local(int frameSlot) {
+        return 2 + 2 * frameSlot;
+    }
+
+    private static void pushInt(ClassBuilder.Code code, int value) {
+        if (value >= -1 && value <= 5) {
+            code.op(ICONST_0 + value, 1);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.op1(BIPUSH, value, 1);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.op2(SIPUSH, value, 1);
+        } else {
+            throw new Unsupported();
+        }
+    }
+
+    private void pushDouble(double value) {
+        if (Double.doubleToRawLongBits(value) == 0L) {
+            code.op(DCONST_0, 2);
+        } else {
+            code.op2(LDC2_W, builder.doubleConstant(value), 2);
+        }
+    }
+
+    private void store(int local) {
+        if (local > 255) throw new Unsupported();
+        code.op1(DSTORE, local, -2);
+    }
+
+    // Checks at run time that a global still holds the callee the code was compiled against.
+    private void guard(int slot, Object callee) {
+        code.op(ALOAD_1, 1);
+        pushInt(code, slot);
+        code.op(AALOAD, -1);
+        code.op(ALOAD_0, 1);
+        if (callee == function) {
+            code.op2(GETFIELD, builder.fieldRef(BASE, "function", "Lcom/t1ne/formular/FFunction;"), 0);
+        } else {
+            code.op2(GETFIELD, builder.fieldRef(BASE, "targets", OBJECTS), 0);
+            pushInt(code, targets.size());
+            code.op(AALOAD, -1);
+            targets.add(callee);
+        }
+        code.op2(INVOKESTATIC, builder.methodRef(BASE, "guard", "(Ljava/lang/Object;Ljava/lang/Object;)V"), -2);
+    }
+
+    // Jumps to the label when the condition is truthy (when == true) or falsy (when == false).
+    private void branch(Expr condition, boolean when, int label) {
+        if (condition instanceof Expr.Grouping) {
+            branch(((Expr.Grouping) condition).expression, when, label);
+            return;
+        }
+        if (condition instanceof Expr.Literal) {
+            if (Interpreter.isTruthy(((Expr.Literal) condition).value) == when) code.jump(GOTO, label, 0);
+            return;
+        }
+        if (condition instanceof Expr.Unary && ((Expr.Unary) condition).operator.type == TokenType.EXCL) {
+            branch(((Expr.Unary) condition).right, !when, label);
+            return;
+        }
+        if (!(condition instanceof Expr.Binary)) throw new Unsupported();
+
+        Expr.Binary binary = (Expr.Binary) condition;
+        int compare;
+        int jumpIfTrue;
+        int jumpIfFalse;
+        switch (binary.operator.type) {
+            // NaN makes every comparison false, which dcmpg/dcmpl encode as 1/-1.
+            case LESS: compare = DCMPG; jumpIfTrue = IFLT; jumpIfFalse = IFGE; break;
+            case LESS_EQUAL: compare = DCMPG; jumpIfTrue = IFLE; jumpIfFalse = IFGT; break;
+            case GREATER: compare = DCMPL; jumpIfTrue = IFGT; jumpIfFalse = IFLE; break;
+            case GREATER_EQUAL: compare = DCMPL; jumpIfTrue = IFGE; jumpIfFalse = IFLT; break;
+            case EQUAL_EQUAL: compare = LCMP; jumpIfTrue = IFEQ; jumpIfFalse = IFNE; break;
+            case EXCL_EQUAL: compare = LCMP; jumpIfTrue = IFNE; jumpIfFalse = IFEQ; break;
+            default: throw new Unsupported();
+        }
+        if (compare == LCMP) {
+            // Same as Double.equals, which isEqual uses.
+            int bits = builder.methodRef("java/lang/Double", "doubleToLongBits", "(D)J");
+            compile(binary.left);
+            code.op2(INVOKESTATIC, bits, 0);
+            compile(binary.right);
+            code.op2(INVOKESTATIC, bits, 0);
+        } else {
+            compile(binary.left);
+            compile(binary.right);
+        }
+        code.op(compare, -3);
+        code.jump(when ? jumpIfTrue : jumpIfFalse, label, -1);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if (stmt.expression instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign) stmt.expression;
+            if (assign.depth == Resolver.GLOBAL) throw new Unsupported();
+            compile(assign.value);
+            store(local(assign.slot));
+            return null;
+        }
+        compile(stmt.expression);
+        code.op(POP2, -2);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        int elseLabel = code.newLabel();
+        branch(stmt.condition, false, elseLabel);
+        compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            code.mark(elseLabel);
+            return null;
+        }
+        int endLabel = code.newLabel();
+        code.jump(GOTO, endLabel, 0);
+        code.mark(elseLabel);
+        compile(stmt.elseBranch);
+        code.mark(endLabel);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) throw new Unsupported();
+        compile(stmt.value);
+        code.op(DRETURN, -2);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) throw new Unsupported();
+        compile(stmt.initializer);
+        store(local(stmt.slot));
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int start = code.newLabel();
+        int exit = code.newLabel();
+        code.mark(start);
+        branch(stmt.condition, false, exit);
+        compile(stmt.body);
+        code.jump(GOTO, start, 0);
+        code.mark(exit);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        if (expr.depth == Resolver.GLOBAL) throw new Unsupported();
+        compile(expr.value);
+        code.op(DUP2, 2);
+        store(local(expr.slot));
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        int op;
+        switch (expr.operator.type) {
+            case PLUS: op = DADD; break;
+            case MINUS: op = DSUB; break;
+            case STAR: op = DMUL; break;
+            case SLASH: op = DDIV; break;
+            default: throw new Unsupported();
+        }
+        compile(expr.left);
+        compile(expr.right);
+        code.op(op, -2);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (!(expr.callee instanceof Expr.Variable)) throw new Unsupported();
+        Expr.Variable callee = (Expr.Variable) expr.callee;
+        if (callee.depth != Resolver.GLOBAL) throw new Unsupported();
+        Object value = interpreter.globals.values[callee.slot];
+        FCallable target;
+        try {
+            target = Interpreter.callable(value, expr.arguments.size(), expr.paren);
+        } catch (RuntimeError error) {
+            throw new Unsupported();
+        }
+
+        if (target == function) {
+            guard(callee.slot, value);
+            code.op(ALOAD_0, 1);
+            code.op(ALOAD_1, 1);
+            for (Expr argument : expr.arguments) {
+                compile(argument);
+            }
+            code.op2(INVOKEVIRTUAL, builder.methodRef(SELF, "run", descriptor), -(2 + 2 * expr.arguments.size()) + 2);
+            return null;
+        }
+
+        String builtin = null;
+        for (String name : MATH.keySet()) {
+            if (interpreter.builtins.get(name) == target) builtin = name;
+        }
+        if (builtin == null) throw new Unsupported();
+        String method = MATH.get(builtin);
+        guard(callee.slot, value);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+        if (builtin.equals("kvadrat")) pushDouble(2);
+        String descriptor = method.equals("pow") ? "(DD)D" : "(D)D";
+        code.op2(INVOKESTATIC, builder.methodRef("java/lang/Math", method, descriptor), method.equals("pow") ? -2 : 0);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (!(expr.value instanceof Double)) throw new Unsupported();
+        pushDouble((double) expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type != TokenType.MINUS) throw new Unsupported();
+        compile(expr.right);
+        code.op(DNEG, 0);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth == Resolver.GLOBAL) {
+            code.op(ALOAD_1, 1);
+            pushInt(code, expr.slot);
+            code.op2(INVOKESTATIC, builder.methodRef(BASE, "global", "(" + OBJECTS + "I)D"), 1);
+            return null;
+        }
+        int local = local(expr.slot);
+        if (local > 255) throw new Unsupported();
+        code.op1(DLOAD, local, 2);
+        return null;
+    }
+
+    // Thrown while generating when the function uses something outside the compiled subset.
+    @SuppressWarnings("serial")
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+}
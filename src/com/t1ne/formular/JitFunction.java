@@ -0,0 +1,109 @@
+package com.t1ne.formular;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Base of the classes Jit generates for hot numeric functions. The generated
+ * code only ever sees doubles; whenever one of its assumptions fails it throws
+ * DEOPTIMIZE and the call is run again by the interpreter. That is safe because
+ * Jit only compiles functions without side effects.
+ */
+abstract class JitFunction implements FCallable {
+    // Deoptimizations after which the generated code is dropped for good.
+    private static final int DEOPT_LIMIT = 100;
+    static final Deoptimization DEOPTIMIZE = new Deoptimization();
+
+    final FFunction function;
+    // Callees the generated code was compiled against, checked with guard().
+    final Object[] targets;
+    private int deopts = 0;
+
+    protected JitFunction(FFunction function, Object[] targets) {
+        this.function = function;
+        this.targets = targets;
+    }
+
+    // Generated: unboxes the arguments and runs the compiled body on doubles.
+    abstract Object invoke(Object[] globals, List<Object> arguments);
+
+    // Generated for functions of up to two parameters, the arguments past the arity are ignored.
+    Object invoke(Object[] globals, Object first, Object second) {
+        throw new IllegalStateException("No fixed-arity entry point for " + function);
+    }
+
+    @Override
+    public int argsNum() {
+        return function.argsNum();
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        try {
+            return invoke(interpreter.globals.values, arguments);
+        } catch (Deoptimization deoptimization) {
+            deoptimized();
+            return function.interpret(interpreter, arguments);
+        }
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        try {
+            return invoke(interpreter.globals.values, null, null);
+        } catch (Deoptimization deoptimization) {
+            deoptimized();
+            return function.interpret(interpreter, Collections.emptyList());
+        }
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object argument) {
+        try {
+            return invoke(interpreter.globals.values, argument, null);
+        } catch (Deoptimization deoptimization) {
+            deoptimized();
+            return function.interpret(interpreter, Collections.singletonList(argument));
+        }
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object first, Object second) {
+        try {
+            return invoke(interpreter.globals.values, first, second);
+        } catch (Deoptimization deoptimization) {
+            deoptimized();
+            return function.interpret(interpreter, Arrays.asList(first, second));
+        }
+    }
+
+    private void deoptimized() {
+        if (++deopts == DEOPT_LIMIT) function.deoptimize();
+    }
+
+    static double number(Object value) {
+        if (value instanceof Double) return (double) value;
+        throw DEOPTIMIZE;
+    }
+
+    static double global(Object[] globals, int slot) {
+        return number(globals[slot]);
+    }
+
+    static void guard(Object actual, Object expected) {
+        if (actual != expected) throw DEOPTIMIZE;
+    }
+
+    @SuppressWarnings("serial")
+    static final class Deoptimization extends RuntimeException {
+        private Deoptimization() {
+            super(null, null, false, false);
+        }
+    }
+}
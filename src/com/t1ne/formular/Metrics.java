@@ -0,0 +1,139 @@
+package com.t1ne.formular;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The counters behind the FormulaR MBean. Contexts on many threads count into
+ * the same adders, which keep a cell per contending thread instead of fighting
+ * over one word. Without -Dformular.jmx=true nothing is counted or registered,
+ * and the checks of ENABLED fold away.
+ */
+final class Metrics implements FormulaRMXBean {
+    static final boolean ENABLED = Boolean.getBoolean("formular.jmx");
+
+    static final LongAdder STATEMENTS = new LongAdder();
+    static final LongAdder LOCAL_LOOKUPS = new LongAdder();
+    static final LongAdder GLOBAL_LOOKUPS = new LongAdder();
+    static final LongAdder USER_CALLS = new LongAdder();
+    static final LongAdder BUILTIN_CALLS = new LongAdder();
+    static final LongAdder RECOMPUTATIONS = new LongAdder();
+    static final LongAdder CALL_SITE_HITS = new LongAdder();
+    static final LongAdder CALL_SITE_MISSES = new LongAdder();
+    static final LongAdder PROGRAM_CACHE_HITS = new LongAdder();
+    static final LongAdder PROGRAM_CACHE_MISSES = new LongAdder();
+    static final LongAdder POLYNOMIAL_CACHE_HITS = new LongAdder();
+    static final LongAdder POLYNOMIAL_CACHE_MISSES = new LongAdder();
+    static final LongAdder FRAMES = new LongAdder();
+
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer()
+                        .registerMBean(new Metrics(), new ObjectName("com.t1ne.formular:type=FormulaR"));
+            } catch (JMException error) {
+                System.err.println("Не вдалося зареєструвати MBean FormulaR: " + error.getMessage());
+            }
+        }
+    }
+
+    private Metrics() {}
+
+    static void lookup(boolean global) {
+        (global ? GLOBAL_LOOKUPS : LOCAL_LOOKUPS).increment();
+    }
+
+    static void call(FCallable target) {
+        if (target instanceof FFunction || target instanceof VMFunction) {
+            USER_CALLS.increment();
+        } else {
+            BUILTIN_CALLS.increment();
+        }
+    }
+
+    @Override
+    public long getStatementsExecuted() {
+        return STATEMENTS.sum();
+    }
+
+    @Override
+    public long getLocalLookups() {
+        return LOCAL_LOOKUPS.sum();
+    }
+
+    @Override
+    public long getGlobalLookups() {
+        return GLOBAL_LOOKUPS.sum();
+    }
+
+    @Override
+    public long getUserFunctionCalls() {
+        return USER_CALLS.sum();
+    }
+
+    @Override
+    public long getBuiltinFunctionCalls() {
+        return BUILTIN_CALLS.sum();
+    }
+
+    @Override
+    public long getReactiveRecomputations() {
+        return RECOMPUTATIONS.sum();
+    }
+
+    @Override
+    public long getCallSiteCacheHits() {
+        return CALL_SITE_HITS.sum();
+    }
+
+    @Override
+    public long getCallSiteCacheMisses() {
+        return CALL_SITE_MISSES.sum();
+    }
+
+    @Override
+    public double getCallSiteCacheHitRate() {
+        return rate(CALL_SITE_HITS.sum(), CALL_SITE_MISSES.sum());
+    }
+
+    @Override
+    public long getProgramCacheHits() {
+        return PROGRAM_CACHE_HITS.sum();
+    }
+
+    @Override
+    public long getProgramCacheMisses() {
+        return PROGRAM_CACHE_MISSES.sum();
+    }
+
+    @Override
+    public double getProgramCacheHitRate() {
+        return rate(PROGRAM_CACHE_HITS.sum(), PROGRAM_CACHE_MISSES.sum());
+    }
+
+    @Override
+    public long getPolynomialCacheHits() {
+        return POLYNOMIAL_CACHE_HITS.sum();
+    }
+
+    @Override
+    public long getPolynomialCacheMisses() {
+        return POLYNOMIAL_CACHE_MISSES.sum();
+    }
+
+    @Override
+    public double getPolynomialCacheHitRate() {
+        return rate(POLYNOMIAL_CACHE_HITS.sum(), POLYNOMIAL_CACHE_MISSES.sum());
+    }
+
+    @Override
+    public long getFramesAllocated() {
+        return FRAMES.sum();
+    }
+
+    private static double rate(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+}
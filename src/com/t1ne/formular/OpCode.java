@@ -0,0 +1,55 @@
+package com.t1ne.formular;
+
+/**
+ * Instructions of the bytecode backend. Operands follow the opcode in the
+ * code array, slots are flat indexes into the current call frame.
+ */
+final class OpCode {
+    static final int CONSTANT = 0;      // constant index
+    static final int NIL = 1;
+    static final int TRUE = 2;
+    static final int FALSE = 3;
+    static final int POP = 4;
+    static final int GET_LOCAL = 5;     // frame slot
+    static final int SET_LOCAL = 6;     // frame slot
+    static final int DEFINE_LOCAL = 7;  // frame slot
+    static final int GET_GLOBAL = 8;    // global slot
+    static final int SET_GLOBAL = 9;    // global slot
+    static final int DEFINE_GLOBAL = 10; // global slot
+    static final int EQUAL = 11;
+    static final int NOT_EQUAL = 12;
+    static final int GREATER = 13;
+    static final int GREATER_EQUAL = 14;
+    static final int LESS = 15;
+    static final int LESS_EQUAL = 16;
+    static final int ADD = 17;
+    static final int SUBTRACT = 18;
+    static final int MULTIPLY = 19;
+    static final int DIVIDE = 20;
+    static final int NOT = 21;
+    static final int NEGATE = 22;
+    static final int PRINT = 23;
+    static final int JUMP = 24;          // target
+    static final int JUMP_IF_FALSE = 25; // target
+    static final int CALL = 26;          // argument count
+    static final int RETURN = 27;
+    static final int REACT = 28;         // constant index of a Stmt
+
+    // Superinstructions for the most common sequences in formula loops.
+    static final int STORE_LOCAL = 29;   // frame slot, assignment used as a statement
+    static final int STORE_GLOBAL = 30;  // global slot, assignment used as a statement
+    static final int JUMP_UNLESS_GREATER = 31;       // target
+    static final int JUMP_UNLESS_GREATER_EQUAL = 32; // target
+    static final int JUMP_UNLESS_LESS = 33;          // target
+    static final int JUMP_UNLESS_LESS_EQUAL = 34;    // target
+    static final int ADD_NUMBER = 35;      // constant index of the right operand
+    static final int SUBTRACT_NUMBER = 36; // constant index of the right operand
+    static final int MULTIPLY_NUMBER = 37; // constant index of the right operand
+    static final int DIVIDE_NUMBER = 38;   // constant index of the right operand
+
+    // Function declarations that join the overloads already declared in the slot.
+    static final int OVERLOAD_LOCAL = 39;  // frame slot
+    static final int OVERLOAD_GLOBAL = 40; // global slot
+
+    private OpCode() {}
+}
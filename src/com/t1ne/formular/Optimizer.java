@@ -0,0 +1,405 @@
+package com.t1ne.formular;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rewrites the parsed program before it is resolved: folds constant
+ * expressions (pure builtins included), propagates vars that are never
+ * reassigned and drops branches and statements that can never run, at every
+ * nesting level. Nothing the user wrote is executed, only builtins on
+ * literal arguments, and every rewrite keeps what the program prints,
+ * including its runtime errors.
+ */
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    private final Interpreter interpreter;
+    private final boolean wholeProgram;
+    // Gets the before and after of every top-level statement that changed, null for no log.
+    private final PrintWriter log;
+    // Vars declared once and never assigned, by name, so every read after the declaration sees its value.
+    private final Set<String> candidates = new HashSet<>();
+    // Names the program declares or assigns; builtins among them can't be folded.
+    private final Set<String> redefined = new HashSet<>();
+    // Values of the candidates declared so far in the scopes that are open.
+    private final Map<String, Object> constants = new HashMap<>();
+    // Candidates in constants in the order they were declared, dropped again as their scopes close.
+    private final List<String> declaredConstants = new ArrayList<>();
+    // How many of declaredConstants are globals, the rest belong to blocks and function bodies.
+    private int globalConstants = 0;
+    // Blocks and function bodies open around the statement being optimized, 0 at the top level.
+    private int depth = 0;
+    private String removal;
+
+    // With wholeProgram false (the prompt) later input may still reassign globals, so they are not propagated.
+    Optimizer(Interpreter interpreter, boolean wholeProgram, PrintWriter log) {
+        this.interpreter = interpreter;
+        this.wholeProgram = wholeProgram;
+        this.log = log;
+    }
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        Declarations declarations = new Declarations();
+        declarations.scan(statements);
+        for (Map.Entry<String, Integer> declared : declarations.declared.entrySet()) {
+            if (declared.getValue() == 1 && declarations.vars.contains(declared.getKey())
+                    && !declarations.assigned.contains(declared.getKey())) {
+                candidates.add(declared.getKey());
+            }
+        }
+        redefined.addAll(declarations.declared.keySet());
+        redefined.addAll(declarations.assigned);
+
+        List<Stmt> optList = new ArrayList<>();
+        TreeView astPrinter = new TreeView();
+        boolean reachable = true;
+        for (Stmt stmt : statements) {
+            removal = "unreachable code after return";
+            Stmt optimized = reachable ? optimize(stmt) : null;
+            if (log != null && optimized != stmt) {
+                log.println("\nBefore: ");
+                log.println(astPrinter.print(stmt));
+                log.println("\nAfter: ");
+                if (optimized == null) {
+                    log.println("Statement was removed (" + removal + ")\n");
+                } else {
+                    log.println(astPrinter.print(optimized));
+                }
+                log.println("/**************************************************************************/");
+            }
+            if (optimized == null) continue;
+            optList.add(optimized);
+            if (optimized instanceof Stmt.Return) reachable = false;
+        }
+        return optList;
+    }
+
+    // Optimizes a statement, null when it can be dropped.
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private List<Stmt> optimizeScope(List<Stmt> statements) {
+        // A candidate is declared only once, so closing a scope never uncovers an outer value.
+        int enclosing = declaredConstants.size();
+        depth++;
+        List<Stmt> optimized = new ArrayList<>();
+        for (Stmt statement : statements) {
+            Stmt result = optimize(statement);
+            if (result == null) continue;
+            optimized.add(result);
+            // Anything after a return in the same block never runs.
+            if (result instanceof Stmt.Return) break;
+        }
+        depth--;
+        while (declaredConstants.size() > enclosing) {
+            constants.remove(declaredConstants.remove(declaredConstants.size() - 1));
+        }
+        return optimized;
+    }
+
+    // Branches and loop bodies must stay statements even when everything in them is dropped.
+    private Stmt body(Stmt stmt) {
+        Stmt optimized = optimize(stmt);
+        return optimized == null ? new Stmt.Block(new ArrayList<>()) : optimized;
+    }
+
+    private static boolean isDeclaration(Stmt stmt) {
+        return stmt instanceof Stmt.Var || stmt instanceof Stmt.Function;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = optimizeScope(stmt.statements);
+        if (statements.isEmpty()) {
+            removal = "block is empty";
+            return null;
+        }
+        return statements.equals(stmt.statements) ? stmt : new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression instanceof Expr.Literal) {
+            removal = "expression has no effect";
+            return null;
+        }
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        // A function body only sees its own locals and the globals, not the blocks it is declared in.
+        List<String> enclosing = declaredConstants.subList(globalConstants, declaredConstants.size());
+        List<String> hiddenNames = new ArrayList<>(enclosing);
+        List<Object> hiddenValues = new ArrayList<>();
+        for (String name : hiddenNames) {
+            hiddenValues.add(constants.remove(name));
+        }
+        enclosing.clear();
+
+        List<Stmt> body = optimizeScope(stmt.body);
+
+        for (int i = 0; i < hiddenNames.size(); i++) {
+            constants.put(hiddenNames.get(i), hiddenValues.get(i));
+        }
+        declaredConstants.addAll(hiddenNames);
+        return body.equals(stmt.body) ? stmt : new Stmt.Function(stmt.name, stmt.params, body);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal) {
+            if (Interpreter.isTruthy(((Expr.Literal) condition).value)) return optimize(stmt.thenBranch);
+            if (stmt.elseBranch != null) return optimize(stmt.elseBranch);
+            removal = "condition is false and no else block provided";
+            return null;
+        }
+
+        Stmt thenBranch = body(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) return stmt;
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Print(stmt.keyword, expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+        Expr value = optimize(stmt.value);
+        return value == stmt.value ? stmt : new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = stmt.initializer == null ? null : optimize(stmt.initializer);
+        if (candidates.contains(stmt.name.lexeme) && (wholeProgram || depth > 0)) {
+            if (initializer == null) {
+                constants.put(stmt.name.lexeme, null);
+                declaredConstants.add(stmt.name.lexeme);
+            } else if (initializer instanceof Expr.Literal) {
+                constants.put(stmt.name.lexeme, ((Expr.Literal) initializer).value);
+                declaredConstants.add(stmt.name.lexeme);
+            }
+            if (depth == 0) globalConstants = declaredConstants.size();
+        }
+        return initializer == stmt.initializer ? stmt : new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal) condition).value)) {
+            removal = "loop body will never execute";
+            return null;
+        }
+
+        Stmt body = body(stmt.body);
+        // A block around a single statement only costs a scope, unless that statement declares something.
+        if (body instanceof Stmt.Block && ((Stmt.Block) body).statements.size() == 1
+                && !isDeclaration(((Stmt.Block) body).statements.get(0))) {
+            body = ((Stmt.Block) body).statements.get(0);
+        }
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(stmt.keyword, condition, body);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        return value == expr.value ? expr : new Expr.Assign(expr.name, value);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Object value = fold(expr.operator.type, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+            if (value != NOT_CONSTANT) return new Expr.Literal(value);
+        }
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    // Marks operands the interpreter would reject; those stay in the tree so the error still happens.
+    private static final Object NOT_CONSTANT = new Object();
+
+    private static Object fold(TokenType operator, Object left, Object right) {
+        switch (operator) {
+            case EXCL_EQUAL: return !Interpreter.isEqual(left, right);
+            case EQUAL_EQUAL: return Interpreter.isEqual(left, right);
+            case PLUS:
+                if (left instanceof String && right instanceof String) return (String) left + right;
+        }
+        if (!(left instanceof Double && right instanceof Double)) return NOT_CONSTANT;
+
+        double a = (double) left;
+        double b = (double) right;
+        switch (operator) {
+            case GREATER: return a > b;
+            case GREATER_EQUAL: return a >= b;
+            case LESS: return a < b;
+            case LESS_EQUAL: return a <= b;
+            case MINUS: return a - b;
+            case PLUS: return a + b;
+            case SLASH: return a / b;
+            case STAR: return a * b;
+        }
+        return NOT_CONSTANT;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        // A named callee is looked up among the functions, a constant var of the same name isn't it.
+        Expr callee = expr.callee instanceof Expr.Variable ? expr.callee : optimize(expr.callee);
+        List<Expr> arguments = new ArrayList<>();
+        boolean constant = true;
+        for (Expr argument : expr.arguments) {
+            Expr optimized = optimize(argument);
+            arguments.add(optimized);
+            constant &= optimized instanceof Expr.Literal;
+        }
+
+        if (constant && callee instanceof Expr.Variable) {
+            Object value = foldBuiltin(((Expr.Variable) callee).name.lexeme, arguments);
+            if (value != NOT_CONSTANT) return new Expr.Literal(value);
+        }
+        if (callee == expr.callee && arguments.equals(expr.arguments)) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    // Builtins are pure, so a call with literal arguments can run now, as long as the name still means the builtin.
+    private Object foldBuiltin(String name, List<Expr> arguments) {
+        FCallable builtin = interpreter.builtins.get(name);
+        if (builtin == null || redefined.contains(name) || builtin.argsNum() != arguments.size()) return NOT_CONSTANT;
+        if (interpreter.globals.values[interpreter.globalSlot(Resolver.functionKey(name))] != builtin) return NOT_CONSTANT;
+
+        List<Object> values = new ArrayList<>();
+        for (Expr argument : arguments) {
+            values.add(((Expr.Literal) argument).value);
+        }
+        try {
+            Object value = builtin.call(interpreter, values);
+            return value instanceof Double ? value : NOT_CONSTANT;
+        } catch (RuntimeException e) {
+            // Bad arguments fail at run time, where the user sees the failure.
+            return NOT_CONSTANT;
+        }
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = optimize(expr.expression);
+        if (expression instanceof Expr.Literal) return expression;
+        return expression == expr.expression ? expr : new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+        if (right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) right).value;
+            if (expr.operator.type == TokenType.EXCL) return new Expr.Literal(!Interpreter.isTruthy(value));
+            if (value instanceof Double) return new Expr.Literal(-(double) value);
+        }
+        return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        if (constants.containsKey(expr.name.lexeme)) return new Expr.Literal(constants.get(expr.name.lexeme));
+        return expr;
+    }
+
+    /**
+     * Counts how often every name is declared (vars, functions and parameters)
+     * and collects the names that are ever assigned, anywhere in the program.
+     */
+    private static class Declarations {
+        final Map<String, Integer> declared = new HashMap<>();
+        final Set<String> vars = new HashSet<>();
+        final Set<String> assigned = new HashSet<>();
+
+        void scan(List<Stmt> statements) {
+            for (Stmt statement : statements) {
+                scan(statement);
+            }
+        }
+
+        private void declare(Token name) {
+            declared.merge(name.lexeme, 1, Integer::sum);
+        }
+
+        private void scan(Stmt stmt) {
+            if (stmt instanceof Stmt.Block) {
+                scan(((Stmt.Block) stmt).statements);
+            } else if (stmt instanceof Stmt.Expression) {
+                scan(((Stmt.Expression) stmt).expression);
+            } else if (stmt instanceof Stmt.Function) {
+                Stmt.Function function = (Stmt.Function) stmt;
+                declare(function.name);
+                for (Token param : function.params) {
+                    declare(param);
+                }
+                scan(function.body);
+            } else if (stmt instanceof Stmt.If) {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                scan(ifStmt.condition);
+                scan(ifStmt.thenBranch);
+                if (ifStmt.elseBranch != null) scan(ifStmt.elseBranch);
+            } else if (stmt instanceof Stmt.Print) {
+                scan(((Stmt.Print) stmt).expression);
+            } else if (stmt instanceof Stmt.Return) {
+                if (((Stmt.Return) stmt).value != null) scan(((Stmt.Return) stmt).value);
+            } else if (stmt instanceof Stmt.Var) {
+                Stmt.Var var = (Stmt.Var) stmt;
+                declare(var.name);
+                vars.add(var.name.lexeme);
+                if (var.initializer != null) scan(var.initializer);
+            } else if (stmt instanceof Stmt.While) {
+                scan(((Stmt.While) stmt).condition);
+                scan(((Stmt.While) stmt).body);
+            }
+        }
+
+        private void scan(Expr expr) {
+            if (expr instanceof Expr.Assign) {
+                assigned.add(((Expr.Assign) expr).name.lexeme);
+                scan(((Expr.Assign) expr).value);
+            } else if (expr instanceof Expr.Binary) {
+                scan(((Expr.Binary) expr).left);
+                scan(((Expr.Binary) expr).right);
+            } else if (expr instanceof Expr.Call) {
+                scan(((Expr.Call) expr).callee);
+                for (Expr argument : ((Expr.Call) expr).arguments) {
+                    scan(argument);
+                }
+            } else if (expr instanceof Expr.Grouping) {
+                scan(((Expr.Grouping) expr).expression);
+            } else if (expr instanceof Expr.Unary) {
+                scan(((Expr.Unary) expr).right);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.t1ne.formular;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Recomputes the dependents of a changed variable level by level on the common
+ * fork/join pool. A formula only reads variables of lower levels, so the
+ * formulas of one level can be evaluated at the same time, each into its own
+ * slot. Only waves of pure formulas, ones that call nothing but builtins, run
+ * in parallel: they can't print or assign, so the result is the one recomputing
+ * them one after another gives.
+ */
+final class ParallelUpdate {
+    // Levels narrower than this are evaluated in the calling thread, a formula
+    // takes about a hundred nanoseconds and forking costs more than that.
+    static final int THRESHOLD = 64;
+    // Formulas a task evaluates at least.
+    static final int SLICE = 16;
+
+    private ParallelUpdate() {}
+
+    /**
+     * Recomputes the affected variables in parallel and returns true, or returns
+     * false without changing anything if the wave is too narrow or not pure, or
+     * if a formula failed. The caller then recomputes them one by one, which
+     * also reports the error the way it always did.
+     */
+    static boolean recompute(Interpreter context, List<DependencyGraph.Node> affected) {
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        if (parallelism < 2 || affected.size() < THRESHOLD) return false;
+
+        List<List<DependencyGraph.Node>> levels = new ArrayList<>();
+        boolean wide = false;
+        for (DependencyGraph.Node node : affected) {
+            while (levels.size() <= node.level) levels.add(new ArrayList<>());
+            List<DependencyGraph.Node> level = levels.get(node.level);
+            level.add(node);
+            if (level.size() >= THRESHOLD) wide = true;
+        }
+        if (!wide) return false;
+        Purity purity = new Purity(context);
+        for (DependencyGraph.Node node : affected) {
+            if (!purity.isPure(node.formula)) return false;
+        }
+
+        Object[] values = context.globals.values;
+        Object[] saved = new Object[affected.size()];
+        for (int i = 0; i < saved.length; i++) {
+            saved[i] = values[affected.get(i).slot];
+        }
+        Interpreter[] workers = new Interpreter[parallelism];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = context.worker();
+        }
+        try {
+            for (List<DependencyGraph.Node> level : levels) {
+                if (level.size() < THRESHOLD) {
+                    workers[0].recompute(level, 0, level.size());
+                } else {
+                    ForkJoinPool.commonPool().invoke(new Level(workers, level));
+                }
+            }
+            return true;
+        } catch (RuntimeException error) {
+            for (int i = 0; i < saved.length; i++) {
+                values[affected.get(i).slot] = saved[i];
+            }
+            return false;
+        }
+    }
+
+    // Splits one level into a slice per worker, each evaluated in the worker's context.
+    @SuppressWarnings("serial")
+    private static final class Level extends RecursiveAction {
+        private final Interpreter[] workers;
+        private final List<DependencyGraph.Node> nodes;
+
+        Level(Interpreter[] workers, List<DependencyGraph.Node> nodes) {
+            this.workers = workers;
+            this.nodes = nodes;
+        }
+
+        @Override
+        protected void compute() {
+            int slices = Math.min(workers.length, nodes.size() / SLICE);
+            List<RecursiveAction> tasks = new ArrayList<>(slices);
+            for (int i = 0; i < slices; i++) {
+                Interpreter worker = workers[i];
+                int from = (int) ((long) nodes.size() * i / slices);
+                int to = (int) ((long) nodes.size() * (i + 1) / slices);
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        worker.recompute(nodes, from, to);
+                    }
+                });
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    // A formula is pure if it assigns nothing and only calls builtins that are still defined.
+    private static final class Purity {
+        private final Interpreter context;
+
+        Purity(Interpreter context) {
+            this.context = context;
+        }
+
+        boolean isPure(Expr expr) {
+            if (expr instanceof Expr.Literal || expr instanceof Expr.Variable) return true;
+            if (expr instanceof Expr.Grouping) return isPure(((Expr.Grouping) expr).expression);
+            if (expr instanceof Expr.Unary) return isPure(((Expr.Unary) expr).right);
+            if (expr instanceof Expr.Binary) {
+                return isPure(((Expr.Binary) expr).left) && isPure(((Expr.Binary) expr).right);
+            }
+            if (expr instanceof Expr.Call) {
+                Expr.Call call = (Expr.Call) expr;
+                if (!isBuiltin(call.callee)) return false;
+                for (Expr argument : call.arguments) {
+                    if (!isPure(argument)) return false;
+                }
+                return true;
+            }
+            return false;
+        }
+
+        private boolean isBuiltin(Expr callee) {
+            if (!(callee instanceof Expr.Variable)) return false;
+            Expr.Variable variable = (Expr.Variable) callee;
+            FCallable builtin = context.builtins.get(variable.name.lexeme);
+            // diff resolves the derivatives it builds, which may add global slots.
+            if (builtin == null || builtin instanceof Derivatives) return false;
+            return variable.depth == Resolver.GLOBAL && context.globals.values[variable.slot] == builtin;
+        }
+    }
+}
@@ -1,59 +1,67 @@
 package com.t1ne.formular;
 
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.function.Supplier;
 
 import static com.t1ne.formular.TokenType.*;
 
 class Parser {
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
-    private int current = 0;
+    // Tokens are pulled one at a time, the parser only looks at the last one and the next.
+    private final Supplier<Token> tokens;
+    private final ErrorReporter reporter;
+    private Token previous;
+    private Token next;
+    // A formula may end in an expression without ';', which is its value.
+    private boolean formula = false;
 
     Parser(List<Token> tokens) {
+        this(tokens, FormulaR.CONSOLE);
+    }
+
+    Parser(List<Token> tokens, ErrorReporter reporter) {
+        this(tokens.iterator()::next, reporter);
+    }
+
+    // Parses the tokens as the scanner produces them.
+    Parser(Scanner scanner, ErrorReporter reporter) {
+        this(scanner::nextToken, reporter);
+    }
+
+    private Parser(Supplier<Token> tokens, ErrorReporter reporter) {
         this.tokens = tokens;
+        this.reporter = reporter;
+        this.next = tokens.get();
     }
 
-    List<Stmt> parse() throws IOException {
+    List<Stmt> parse() {
         List<Stmt> statements = new ArrayList<>();
-        Map <String, Stmt> varStmts = new HashMap<>();
-        TreeView astPrinter = new TreeView();
-        PrintWriter astFile = new PrintWriter("ast.txt", StandardCharsets.UTF_8);
         while (!isAtEnd()) {
-            Stmt stmt = declaration();
-            astFile.println(astPrinter.print(stmt));
-            String name;
-            if (stmt instanceof Stmt.Var) {
-                Stmt.Var var = (Stmt.Var) stmt;
-                name = var.name.lexeme;
-                varStmts.put(name, stmt);
-                for (String key : varStmts.keySet()) {
-                    statements.add(varStmts.get(key));
-                }
-            } else if (stmt instanceof Stmt.Expression) {
-                Stmt.Expression expr = (Stmt.Expression) stmt;
-                if (expr.expression instanceof Expr.Assign) {
-                    Expr.Assign assign = (Expr.Assign) expr.expression;
-                    name = assign.name.lexeme;
-                    varStmts.put(name, stmt);
-                    for (String key : varStmts.keySet()) {
-                        statements.add(varStmts.get(key));
-                    }
-                }
-            } else {
-                statements.add(stmt);
-            }
+            statements.add(declaration());
         }
-        astFile.close();
         return statements;
     }
 
+    /**
+     * Parses one top-level declaration, so a script can run while it is still
+     * being parsed. Returns null after a syntax error, like parse() puts null
+     * in its list, and has nothing left to parse once hasNext() is false.
+     */
+    Stmt next() {
+        return declaration();
+    }
+
+    boolean hasNext() {
+        return !isAtEnd();
+    }
+
+    List<Stmt> parseFormula() {
+        formula = true;
+        return parse();
+    }
+
     private Expr expression() {
         return assignment();
     }
@@ -94,9 +102,10 @@ class Parser {
     }
 
     private Stmt printStatement() {
+        Token keyword = previous();
         Expr value = expression();
         consume(SEMICOLON, "Очікується ';' наприкінці виразу.");
-        return new Stmt.Print(value);
+        return new Stmt.Print(keyword, value);
     }
 
     private Stmt returnStatement() {
@@ -123,16 +132,18 @@ class Parser {
     }
 
     private Stmt whileStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Очікується '(' після 'while'.");
         Expr condition = expression();
         consume(RIGHT_PAREN, "Очікується ')' після умови циклу.");
         Stmt body = statement();
 
-        return new Stmt.While(condition, body);
+        return new Stmt.While(keyword, condition, body);
     }
 
     private Stmt expressionStatement() {
         Expr expr = expression();
+        if (formula && isAtEnd()) return new Stmt.Expression(expr);
         consume(SEMICOLON, "Відсутній символ ';' наприкінці виразу.");
         return new Stmt.Expression(expr);
     }
@@ -149,7 +160,6 @@ class Parser {
         consume(RIGHT_PAREN, "Очікується ')' в кінці списку параметрів.");
         consume(LEFT_BRACE, "Очікується '{' перед тілом функції.");
         List<Stmt> body = block();
-        name.lexeme += "_" + parameters.size();
         return new Stmt.Function(name, parameters, body);
     }
 
@@ -217,7 +227,10 @@ class Parser {
     }
 
     private Token advance() {
-        if (!isAtEnd()) current++;
+        if (!isAtEnd()) {
+            previous = next;
+            next = tokens.get();
+        }
         return previous();
     }
 
@@ -226,15 +239,19 @@ class Parser {
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return next;
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
 
     private ParseError error(Token token, String message) {
-        FormulaR.error(token, message);
+        if (token.type == EOF) {
+            reporter.error(token.line, " в кінці файлу", message);
+        } else {
+            reporter.error(token.line, " в '" + token.lexeme + "'", message);
+        }
         return new ParseError();
     }
 
@@ -323,8 +340,6 @@ class Parser {
         }
 
         Token paren = consume(RIGHT_PAREN, "Очікується ')' після виразу.");
-        Expr.Variable caller = (Expr.Variable)callee;
-        caller.name.lexeme += "_" + arguments.size();
         return new Expr.Call(callee, paren, arguments);
     }
 
@@ -0,0 +1,104 @@
+package com.t1ne.formular;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs a script while it is still being read. A producer thread scans the
+ * reader and parses one top-level declaration at a time into a bounded queue;
+ * the calling thread optimizes, resolves and executes the declarations as they
+ * arrive. Reading, parsing and execution overlap, and besides the globals only
+ * a queue of declarations and one buffer of input are ever held in memory.
+ *
+ * Unlike a whole script, declarations run before the rest of the script is
+ * parsed: a syntax error stops execution where it occurs, and the optimizer
+ * treats globals the way it does at the prompt.
+ */
+class Pipeline {
+    // Parsed declarations waiting to run.
+    static final int CAPACITY = 1024;
+    // Marks the end of the script in the queue.
+    private static final Stmt END = new Stmt.Block(Collections.emptyList());
+
+    private final Interpreter interpreter;
+    private final VM vm;
+    private final BlockingQueue<Stmt> queue = new ArrayBlockingQueue<>(CAPACITY);
+    // Set by the parser before it queues END, seen by the runner after taking it.
+    private Throwable failure;
+
+    // vm is null to run the declarations in the tree-walking interpreter.
+    Pipeline(Interpreter interpreter, VM vm) {
+        this.interpreter = interpreter;
+        this.vm = vm;
+    }
+
+    /**
+     * Runs the script read from the reader and closes the reader. Syntax and
+     * runtime errors go to the interpreter's reporter; returns once the script
+     * has ended, at its end, at a top-level return or at the first error.
+     */
+    void run(Reader reader) throws InterruptedException {
+        Thread parser = new Thread(() -> parse(reader), "FormulaR parser");
+        parser.setDaemon(true);
+        parser.start();
+        boolean ended;
+        try {
+            ended = execute();
+        } finally {
+            // Stops the parser if the script ended before its input did.
+            parser.interrupt();
+            parser.join();
+        }
+        if (ended && failure != null) {
+            if (failure instanceof Error) throw (Error) failure;
+            if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+            throw new RuntimeException(failure);
+        }
+    }
+
+    private void parse(Reader input) {
+        try (Reader reader = input) {
+            Parser parser = new Parser(new Scanner(reader, interpreter.reporter), interpreter.reporter);
+            boolean syntaxError = false;
+            while (parser.hasNext()) {
+                Stmt statement = parser.next();
+                // Keep parsing after a syntax error to report the ones after it, but run nothing more.
+                if (statement == null) syntaxError = true;
+                if (!syntaxError) queue.put(statement);
+            }
+        } catch (InterruptedException error) {
+            // The runner is gone already.
+            return;
+        } catch (Throwable error) {
+            // Even a stack overflow in the parser has to end the queue, or the runner waits forever.
+            failure = error;
+        }
+        try {
+            queue.put(END);
+        } catch (InterruptedException error) {
+            // The runner is gone already.
+        }
+    }
+
+    // Returns whether it got to the end of the input.
+    private boolean execute() throws InterruptedException {
+        List<Stmt> batch = new ArrayList<>();
+        for (;;) {
+            // Whatever has been parsed meanwhile runs as one script.
+            batch.add(queue.take());
+            queue.drainTo(batch);
+            boolean end = batch.get(batch.size() - 1) == END;
+            if (end) batch.remove(batch.size() - 1);
+
+            List<Stmt> statements = new Optimizer(interpreter, false, null).optimize(batch);
+            new Resolver(interpreter).resolve(statements);
+            boolean completed = vm != null ? vm.interpret(statements) : interpreter.interpret(statements);
+            if (end || !completed) return end;
+            batch.clear();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.t1ne.formular;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.Math.pow;
+
+/**
+ * Derivatives of the polynomials diffPolynom takes as strings like
+ * "3x^2 + 2x^1". A formula is parsed once and kept in a small LRU cache, so
+ * sweeping it over many points only costs a Horner evaluation per point.
+ * Every context of a program shares one cache, so it is synchronized.
+ */
+class Polynomials {
+    static final int CAPACITY = 64;
+
+    private final Map<String, Derivative> cache = new LinkedHashMap<String, Derivative>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Derivative> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+    // Adders, so reading them doesn't wait for the cache's lock.
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    double derivative(String formula, double x) {
+        return parse(formula).at(x);
+    }
+
+    synchronized Derivative parse(String formula) {
+        Derivative derivative = cache.get(formula);
+        if (derivative != null) {
+            hits.increment();
+            if (Metrics.ENABLED) Metrics.POLYNOMIAL_CACHE_HITS.increment();
+            return derivative;
+        }
+        misses.increment();
+        if (Metrics.ENABLED) Metrics.POLYNOMIAL_CACHE_MISSES.increment();
+        derivative = Derivative.parse(formula);
+        cache.put(formula, derivative);
+        return derivative;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Derivative of one polynomial. Terms whose derivative has a non-negative
+     * power are evaluated by Horner's method, the rest (from x^0 and negative
+     * powers) term by term, the way diffPolynom always did.
+     */
+    static final class Derivative {
+        // Beyond this power the coefficient array would be mostly zeros.
+        private static final int MAX_DENSE_POWER = 64;
+
+        // Coefficients of the derivative, indexed by power.
+        private final double[] coefficients;
+        private final double[] factors;
+        private final int[] powers;
+
+        private Derivative(double[] coefficients, double[] factors, int[] powers) {
+            this.coefficients = coefficients;
+            this.factors = factors;
+            this.powers = powers;
+        }
+
+        double at(double x) {
+            // Seeded with the highest coefficient rather than 0, as 0 * x is NaN for an infinite x.
+            int last = coefficients.length - 1;
+            double answer = last >= 0 ? coefficients[last] : 0;
+            for (int i = last - 1; i >= 0; i--) {
+                answer = answer * x + coefficients[i];
+            }
+            for (int i = 0; i < factors.length; i++) {
+                answer += factors[i] * pow(x, powers[i]);
+            }
+            return answer;
+        }
+
+        static Derivative parse(String formula) {
+            String[] parts = formula.split(" ");
+            double[] termFactors = new double[parts.length];
+            int[] termPowers = new int[parts.length];
+            int terms = 0;
+            int maxPower = -1;
+            boolean negative = false;
+            for (String part : parts) {
+                if (part.equals("+")) {
+                    negative = false;
+                } else if (part.equals("-")) {
+                    negative = true;
+                } else {
+                    int i = part.indexOf('x');
+                    if (i < 0) throw new StringIndexOutOfBoundsException("No 'x' in " + part);
+                    int coeff = Integer.parseInt(part.substring(0, i));
+                    int pow = Integer.parseInt(part.substring(i + 2));
+                    // Same int product the old per-call parser used.
+                    termFactors[terms] = negative ? -(coeff * pow) : coeff * pow;
+                    termPowers[terms] = pow - 1;
+                    maxPower = Math.max(maxPower, pow - 1);
+                    terms++;
+                }
+            }
+
+            boolean dense = maxPower <= MAX_DENSE_POWER;
+            double[] coefficients = new double[dense ? maxPower + 1 : 0];
+            int sparse = 0;
+            for (int i = 0; i < terms; i++) {
+                if (dense && termPowers[i] >= 0) {
+                    coefficients[termPowers[i]] += termFactors[i];
+                } else {
+                    termFactors[sparse] = termFactors[i];
+                    termPowers[sparse] = termPowers[i];
+                    sparse++;
+                }
+            }
+            double[] factors = new double[sparse];
+            int[] powers = new int[sparse];
+            System.arraycopy(termFactors, 0, factors, 0, sparse);
+            System.arraycopy(termPowers, 0, powers, 0, sparse);
+            return new Derivative(coefficients, factors, powers);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.t1ne.formular;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a ProfilingInterpreter saw: calls and time of every function, the
+ * iterations of every loop and how many statements ran on every line. Time is
+ * also kept per call stack, for the collapsed stacks flame graph tools read.
+ * Only used from the thread that runs the script.
+ */
+class Profiler {
+    static class Function {
+        final String name;
+        long calls = 0;
+        // Time from the outermost call in until it returned, recursion is counted once.
+        long nanos = 0;
+        // Time in the function itself, without the functions it called.
+        long selfNanos = 0;
+        private int active = 0;
+
+        Function(String name) {
+            this.name = name;
+        }
+    }
+
+    // What is counted when a statement runs, found with one lookup.
+    private static class Statement {
+        final int line;
+        // Iterations of the loop the statement is the body of, or null.
+        long[] iterations = null;
+
+        Statement(int line) {
+            this.line = line;
+        }
+    }
+
+    // A call stack, its children are the functions called from it.
+    private static class Stack {
+        final String name;
+        final Map<Function, Stack> children = new IdentityHashMap<>();
+        long selfNanos = 0;
+
+        Stack(String name) {
+            this.name = name;
+        }
+    }
+
+    private final Map<FCallable, String> builtinNames = new IdentityHashMap<>();
+    private final Map<FCallable, Function> functions = new IdentityHashMap<>();
+    private final Map<Stmt.While, long[]> loops = new IdentityHashMap<>();
+    private final Map<Stmt, Statement> statements = new IdentityHashMap<>();
+    private long[] lineHits = new long[64];
+
+    private final Stack root = new Stack("script");
+    // The running calls, innermost last, with when they started and how long their callees took.
+    private final List<Stack> stacks = new ArrayList<>();
+    private final List<Function> running = new ArrayList<>();
+    private long[] starts = new long[16];
+    private long[] childNanos = new long[16];
+    private final long start = System.nanoTime();
+
+    Profiler(Map<String, FCallable> builtins) {
+        for (Map.Entry<String, FCallable> builtin : builtins.entrySet()) {
+            builtinNames.put(builtin.getValue(), builtin.getKey());
+        }
+        stacks.add(root);
+    }
+
+    Function function(FCallable callable) {
+        Function function = functions.get(callable);
+        if (function == null) {
+            function = new Function(name(callable));
+            functions.put(callable, function);
+        }
+        return function;
+    }
+
+    void enter(Function function) {
+        int depth = running.size();
+        if (depth == starts.length) {
+            starts = Arrays.copyOf(starts, depth * 2);
+            childNanos = Arrays.copyOf(childNanos, depth * 2);
+        }
+        Stack caller = stacks.get(depth);
+        Stack stack = caller.children.get(function);
+        if (stack == null) {
+            stack = new Stack(function.name);
+            caller.children.put(function, stack);
+        }
+        stacks.add(stack);
+        running.add(function);
+        function.calls++;
+        function.active++;
+        childNanos[depth] = 0;
+        starts[depth] = System.nanoTime();
+    }
+
+    void exit() {
+        long end = System.nanoTime();
+        int depth = running.size() - 1;
+        Function function = running.remove(depth);
+        Stack stack = stacks.remove(depth + 1);
+        long elapsed = end - starts[depth];
+        long self = elapsed - childNanos[depth];
+        if (--function.active == 0) function.nanos += elapsed;
+        function.selfNanos += self;
+        stack.selfNanos += self;
+        if (depth > 0) childNanos[depth - 1] += elapsed;
+    }
+
+    void loop(Stmt.While loop) {
+        if (!loops.containsKey(loop)) {
+            long[] iterations = new long[1];
+            loops.put(loop, iterations);
+            statement(loop.body).iterations = iterations;
+        }
+    }
+
+    void execute(Stmt stmt) {
+        Statement statement = statements.get(stmt);
+        if (statement == null) statement = statement(stmt);
+        if (statement.iterations != null) statement.iterations[0]++;
+        if (statement.line >= 0) lineHits[statement.line]++;
+    }
+
+    private Statement statement(Stmt stmt) {
+        Statement statement = statements.get(stmt);
+        if (statement != null) return statement;
+        // Blocks only group statements, their lines are counted by what is in them.
+        int line = stmt instanceof Stmt.Block ? -1 : line(stmt);
+        if (line >= lineHits.length) lineHits = Arrays.copyOf(lineHits, Math.max(line + 1, lineHits.length * 2));
+        statement = new Statement(line);
+        statements.put(stmt, statement);
+        return statement;
+    }
+
+    // Sorted by time, the loops by iterations and the lines by hits, longest first.
+    void report(PrintStream out, int limit) {
+        long total = System.nanoTime() - start;
+        List<Function> byTime = new ArrayList<>(functions.values());
+        byTime.sort(Comparator.comparingLong((Function function) -> function.nanos).reversed());
+        out.println("Профіль, загальний час " + millis(total) + " мс");
+        out.println();
+        out.printf("%-32s %12s %12s %12s%n", "Функція", "Викликів", "Час, мс", "Власний, мс");
+        for (Function function : byTime.subList(0, Math.min(limit, byTime.size()))) {
+            out.printf("%-32s %12d %12s %12s%n", function.name, function.calls,
+                    millis(function.nanos), millis(function.selfNanos));
+        }
+
+        List<Map.Entry<Stmt.While, long[]>> byIterations = new ArrayList<>(loops.entrySet());
+        byIterations.sort(Comparator.comparingLong((Map.Entry<Stmt.While, long[]> loop) -> loop.getValue()[0]).reversed());
+        out.println();
+        out.printf("%-32s %12s%n", "Цикл", "Ітерацій");
+        for (Map.Entry<Stmt.While, long[]> loop : byIterations.subList(0, Math.min(limit, byIterations.size()))) {
+            out.printf("%-32s %12d%n", "while, рядок " + loop.getKey().keyword.line, loop.getValue()[0]);
+        }
+
+        List<Integer> byHits = new ArrayList<>();
+        for (int line = 0; line < lineHits.length; line++) {
+            if (lineHits[line] > 0) byHits.add(line);
+        }
+        byHits.sort(Comparator.comparingLong((Integer line) -> lineHits[line]).reversed());
+        out.println();
+        out.printf("%-32s %12s%n", "Рядок", "Виконань");
+        for (int line : byHits.subList(0, Math.min(limit, byHits.size()))) {
+            out.printf("%-32d %12d%n", line, lineHits[line]);
+        }
+    }
+
+    /**
+     * Writes a line per call stack, its frames joined by ';' and then its own
+     * time in microseconds, the input flamegraph.pl and speedscope take.
+     */
+    void writeStacks(Path file) throws IOException {
+        root.selfNanos = System.nanoTime() - start - totalNanos(root);
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            writeStacks(writer, root, root.name);
+        }
+    }
+
+    private void writeStacks(PrintWriter writer, Stack stack, String path) {
+        long micros = stack.selfNanos / 1000;
+        if (micros > 0) writer.println(path + " " + micros);
+        for (Stack child : stack.children.values()) {
+            writeStacks(writer, child, path + ";" + child.name);
+        }
+    }
+
+    // Time spent in the calls made from the stack, at any depth.
+    private static long totalNanos(Stack stack) {
+        long nanos = 0;
+        for (Stack child : stack.children.values()) {
+            nanos += child.selfNanos + totalNanos(child);
+        }
+        return nanos;
+    }
+
+    private String name(FCallable callable) {
+        String name = builtinNames.get(callable);
+        if (name != null) return name;
+        if (callable instanceof FFunction) {
+            // Overloads and redefinitions share a name, the line tells them apart.
+            Token token = ((FFunction) callable).declaration.name;
+            return token.lexeme + ":" + token.line;
+        }
+        return callable.toString().replace(' ', '_').replace(';', '_');
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    // Line of the first token of a statement, -1 only for an if or expression of a lone literal, which the optimizer removes.
+    private static int line(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression) return line(((Stmt.Expression) stmt).expression);
+        if (stmt instanceof Stmt.Print) return ((Stmt.Print) stmt).keyword.line;
+        if (stmt instanceof Stmt.Function) return ((Stmt.Function) stmt).name.line;
+        if (stmt instanceof Stmt.Var) return ((Stmt.Var) stmt).name.line;
+        if (stmt instanceof Stmt.Return) return ((Stmt.Return) stmt).keyword.line;
+        if (stmt instanceof Stmt.If) return line(((Stmt.If) stmt).condition);
+        if (stmt instanceof Stmt.While) return ((Stmt.While) stmt).keyword.line;
+        return -1;
+    }
+
+    private static int line(Expr expr) {
+        if (expr instanceof Expr.Assign) return ((Expr.Assign) expr).name.line;
+        if (expr instanceof Expr.Variable) return ((Expr.Variable) expr).name.line;
+        if (expr instanceof Expr.Call) return line(((Expr.Call) expr).callee);
+        if (expr instanceof Expr.Binary) {
+            int line = line(((Expr.Binary) expr).left);
+            return line >= 0 ? line : ((Expr.Binary) expr).operator.line;
+        }
+        if (expr instanceof Expr.Unary) return ((Expr.Unary) expr).operator.line;
+        if (expr instanceof Expr.Grouping) return line(((Expr.Grouping) expr).expression);
+        return -1;
+    }
+}
@@ -0,0 +1,101 @@
+package com.t1ne.formular;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An interpreter that tells a Profiler about every statement it executes,
+ * every loop it enters and every function it calls. Its hooks are overrides,
+ * so the plain interpreter runs without them. Functions are never compiled:
+ * compiled code calls other functions directly, past these hooks.
+ */
+class ProfilingInterpreter extends Interpreter {
+    final Profiler profiler = new Profiler(builtins);
+    // The profiled stand-in of every function called so far.
+    private final Map<FCallable, FCallable> profiled = new IdentityHashMap<>();
+
+    @Override
+    boolean compiles() {
+        return false;
+    }
+
+    @Override
+    Completion execute(Stmt stmt) {
+        profiler.execute(stmt);
+        return super.execute(stmt);
+    }
+
+    @Override
+    public Completion visitWhileStmt(Stmt.While stmt) {
+        profiler.loop(stmt);
+        return super.visitWhileStmt(stmt);
+    }
+
+    @Override
+    FCallable target(Expr.Call expr, Object callee) {
+        FCallable target = super.target(expr, callee);
+        FCallable stand = profiled.get(target);
+        if (stand == null) {
+            stand = new Profiled(target, profiler.function(target));
+            profiled.put(target, stand);
+        }
+        return stand;
+    }
+
+    // Times the calls of a function, its arguments are evaluated before it is entered.
+    private class Profiled implements FCallable {
+        private final FCallable function;
+        private final Profiler.Function stats;
+
+        Profiled(FCallable function, Profiler.Function stats) {
+            this.function = function;
+            this.stats = stats;
+        }
+
+        @Override
+        public int argsNum() {
+            return function.argsNum();
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            profiler.enter(stats);
+            try {
+                return function.call(interpreter, arguments);
+            } finally {
+                profiler.exit();
+            }
+        }
+
+        @Override
+        public Object call0(Interpreter interpreter) {
+            profiler.enter(stats);
+            try {
+                return function.call0(interpreter);
+            } finally {
+                profiler.exit();
+            }
+        }
+
+        @Override
+        public Object call1(Interpreter interpreter, Object argument) {
+            profiler.enter(stats);
+            try {
+                return function.call1(interpreter, argument);
+            } finally {
+                profiler.exit();
+            }
+        }
+
+        @Override
+        public Object call2(Interpreter interpreter, Object first, Object second) {
+            profiler.enter(stats);
+            try {
+                return function.call2(interpreter, first, second);
+            } finally {
+                profiler.exit();
+            }
+        }
+    }
+}
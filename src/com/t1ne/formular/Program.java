@@ -0,0 +1,26 @@
+package com.t1ne.formular;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A parsed, optimized and resolved program that never changes afterwards and
+ * can be shared between threads. Each thread runs it in an execution context
+ * of its own from newContext(); the contexts share the global layout, the
+ * builtins and the functions of the program, so code compiled by the JIT in
+ * one context is used by all of them.
+ */
+final class Program {
+    final List<Stmt> statements;
+    private final Interpreter resolver;
+
+    Program(Interpreter resolver, List<Stmt> statements) {
+        new Resolver(resolver).resolve(statements);
+        this.resolver = resolver;
+        this.statements = Collections.unmodifiableList(statements);
+    }
+
+    Interpreter newContext() {
+        return new Interpreter(resolver);
+    }
+}
@@ -0,0 +1,90 @@
+package com.t1ne.formular;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Optimized programs stored in a directory, one file per script named by the
+ * SHA-256 of its source, so a script that was run before skips scanning,
+ * parsing and optimizing and is only mapped, decoded and resolved. The hash is
+ * stored in the file too: a file of an older format, for another source or
+ * damaged is a miss, and the program is encoded again over it.
+ */
+class ProgramCache {
+    private final Path directory;
+    private long hits = 0;
+    private long misses = 0;
+
+    ProgramCache(Path directory) {
+        this.directory = directory;
+    }
+
+    static byte[] key(String source) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException error) {
+            // Every Java platform has SHA-256.
+            throw new IllegalStateException(error);
+        }
+    }
+
+    // The program stored for the key, or null if there is none that is still good.
+    List<Stmt> load(byte[] key) {
+        try (FileChannel channel = FileChannel.open(file(key))) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            List<Stmt> statements = AstCodec.decode(key, buffer);
+            if (statements != null) {
+                hits++;
+                if (Metrics.ENABLED) Metrics.PROGRAM_CACHE_HITS.increment();
+                return statements;
+            }
+        } catch (NoSuchFileException error) {
+            // Not cached yet.
+        } catch (IOException | IllegalArgumentException | BufferUnderflowException error) {
+            // Damaged, stored again after this run compiles it.
+        }
+        misses++;
+        if (Metrics.ENABLED) Metrics.PROGRAM_CACHE_MISSES.increment();
+        return null;
+    }
+
+    void store(byte[] key, List<Stmt> statements) {
+        byte[] bytes = AstCodec.encode(key, statements);
+        if (bytes == null) return;
+        try {
+            Files.createDirectories(directory);
+            // Written aside and moved in place, so a reader never maps half a file.
+            Path temporary = Files.createTempFile(directory, "program", ".tmp");
+            Files.write(temporary, bytes);
+            Files.move(temporary, file(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException error) {
+            System.err.println("Не вдалося зберегти програму в кеш " + directory + ": " + error.getMessage());
+        }
+    }
+
+    long hits() {
+        return hits;
+    }
+
+    long misses() {
+        return misses;
+    }
+
+    private Path file(byte[] key) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : key) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return directory.resolve(name.append(".frc").toString());
+    }
+}
@@ -0,0 +1,277 @@
+package com.t1ne.formular;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Static pass between the parser and the interpreter. Gives every variable
+ * access a (depth, slot) address, so the interpreter reads environments by
+ * index instead of looking names up in a chain of hash maps. Nested blocks are
+ * laid out one after another in the frame of their function or top-level
+ * block, so a local is always at depth 0 and only globals are elsewhere.
+ *
+ * Functions and variables of the same name get slots of their own, as they
+ * did when function names carried their arity: a callee is looked up among the
+ * functions first and any other name among the variables first, so "var sin"
+ * doesn't hide the builtin and a function can still be passed to diff.
+ */
+class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // Depth of accesses that go straight to the global environment.
+    static final int GLOBAL = -1;
+
+    private final Interpreter interpreter;
+    private List<Map<String, Integer>> scopes = new ArrayList<>();
+    // First frame slot of every open scope, and the slots the current frame needs.
+    private List<Integer> bases = new ArrayList<>();
+    private int frameSize = 0;
+    // Globals the top-level statements declare, by key, known before the statements run.
+    private final Set<String> declaredGlobals = new HashSet<>();
+
+    Resolver(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    // The key a function is declared under, it can't clash with the name of a variable.
+    static String functionKey(String name) {
+        return name + "()";
+    }
+
+    void resolve(List<Stmt> statements) {
+        if (scopes.isEmpty()) {
+            for (Stmt statement : statements) {
+                if (statement instanceof Stmt.Var) declaredGlobals.add(((Stmt.Var) statement).name.lexeme);
+                if (statement instanceof Stmt.Function) {
+                    declaredGlobals.add(functionKey(((Stmt.Function) statement).name.lexeme));
+                }
+            }
+        }
+        for (Stmt statement : statements) {
+            resolve(statement);
+        }
+    }
+
+    private void resolve(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void resolve(Expr expr) {
+        expr.accept(this);
+    }
+
+    private int declare(String key) {
+        if (scopes.isEmpty()) return interpreter.globalSlot(key);
+
+        Map<String, Integer> scope = scopes.get(scopes.size() - 1);
+        Integer slot = scope.get(key);
+        if (slot == null) {
+            slot = bases.get(bases.size() - 1) + scope.size();
+            scope.put(key, slot);
+            frameSize = Math.max(frameSize, slot + 1);
+        }
+        return slot;
+    }
+
+    private void beginScope() {
+        int last = scopes.size() - 1;
+        bases.add(scopes.isEmpty() ? 0 : bases.get(last) + scopes.get(last).size());
+        scopes.add(new HashMap<>());
+    }
+
+    private void endScope() {
+        bases.remove(bases.size() - 1);
+        scopes.remove(scopes.size() - 1);
+    }
+
+    private int resolveLocal(String key) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            if (scopes.get(i).containsKey(key)) return 0;
+        }
+        return GLOBAL;
+    }
+
+    private int slotAt(int depth, String key) {
+        if (depth == GLOBAL) return interpreter.globalSlot(key);
+        for (int i = scopes.size() - 1; ; i--) {
+            Integer slot = scopes.get(i).get(key);
+            if (slot != null) return slot;
+        }
+    }
+
+    // The key a name is read by, the other namespace only if the name is declared just there.
+    private String key(Token name, boolean callee) {
+        String function = functionKey(name.lexeme);
+        String first = callee ? function : name.lexeme;
+        String second = callee ? name.lexeme : function;
+        if (isDeclared(first) || !isDeclared(second)) return first;
+        return second;
+    }
+
+    private boolean isDeclared(String key) {
+        return resolveLocal(key) != GLOBAL || declaredGlobals.contains(key) || interpreter.isDefined(key);
+    }
+
+    private void resolve(Expr.Variable expr, boolean callee) {
+        String key = key(expr.name, callee);
+        expr.depth = resolveLocal(key);
+        expr.slot = slotAt(expr.depth, key);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        // Only a top-level block opens a frame, nested ones live in the enclosing frame.
+        boolean frame = scopes.isEmpty();
+        if (frame) frameSize = 0;
+        beginScope();
+        resolve(stmt.statements);
+        endScope();
+        if (frame) stmt.slots = frameSize;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        // Only a name declared before in the same scope gets another overload: sibling blocks
+        // share slots of the frame, one may still hold a function of an earlier block.
+        String key = functionKey(stmt.name.lexeme);
+        stmt.overloads = scopes.isEmpty() || scopes.get(scopes.size() - 1).containsKey(key);
+        stmt.slot = declare(key);
+        resolveFunction(stmt);
+        return null;
+    }
+
+    // Resolves the parameters and body of a function, also one that is not declared anywhere.
+    void resolveFunction(Stmt.Function stmt) {
+        // Function bodies only see their own locals and the globals.
+        List<Map<String, Integer>> enclosing = scopes;
+        List<Integer> enclosingBases = bases;
+        int enclosingFrameSize = frameSize;
+        scopes = new ArrayList<>();
+        bases = new ArrayList<>();
+        frameSize = 0;
+        beginScope();
+        for (Token param : stmt.params) {
+            declare(param.lexeme);
+        }
+        resolve(stmt.body);
+        stmt.slots = frameSize;
+        scopes = enclosing;
+        bases = enclosingBases;
+        frameSize = enclosingFrameSize;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.thenBranch);
+        if (stmt.elseBranch != null) resolve(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) resolve(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        // The initializer still sees the outer variable with the same name.
+        if (stmt.initializer != null) resolve(stmt.initializer);
+        stmt.slot = declare(stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        resolve(expr.value);
+        expr.depth = resolveLocal(expr.name.lexeme);
+        expr.slot = slotAt(expr.depth, expr.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        switch (expr.operator.type) {
+            case MINUS:
+            case SLASH:
+            case STAR:
+                expr.numeric = true;
+                break;
+            case PLUS:
+                // A sum with one numeric side can only be a number or an error.
+                expr.numeric = isNumeric(expr.left) || isNumeric(expr.right);
+                break;
+        }
+        return null;
+    }
+
+    // Whether the expression is statically known to produce a number (or fail).
+    static boolean isNumeric(Expr expr) {
+        if (expr instanceof Expr.Literal) return ((Expr.Literal) expr).value instanceof Double;
+        if (expr instanceof Expr.Grouping) return isNumeric(((Expr.Grouping) expr).expression);
+        if (expr instanceof Expr.Unary) return ((Expr.Unary) expr).operator.type == TokenType.MINUS;
+        if (expr instanceof Expr.Binary) return ((Expr.Binary) expr).numeric;
+        return false;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Variable) {
+            resolve((Expr.Variable) expr.callee, true);
+        } else {
+            resolve(expr.callee);
+        }
+        for (Expr argument : expr.arguments) {
+            resolve(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        resolve(expr, false);
+        return null;
+    }
+}
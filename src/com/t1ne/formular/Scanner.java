@@ -1,6 +1,10 @@
 package com.t1ne.formular;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,12 +12,18 @@ import java.util.Map;
 import static com.t1ne.formular.TokenType.*;
 
 public class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    // Characters read so far, from start of the current lexeme on once a reader refills it.
+    private char[] source;
+    private int length;
+    private final Reader reader;
+    private Token token;
+    private final SymbolTable symbols;
     private int start = 0;
     private int current = 0;
     private int line = 1;
-    private static final Map<String, TokenType> keywords;
+    private final ErrorReporter reporter;
+    static final Map<String, TokenType> keywords;
+    private static final int BUFFER_SIZE = 8192;
 
     static {
         keywords = new HashMap<>();
@@ -31,22 +41,83 @@ public class Scanner {
     }
 
     Scanner(String source) {
-        this.source = source;
+        this(source, FormulaR.CONSOLE);
+    }
+
+    Scanner(String source, ErrorReporter reporter) {
+        this(source, new SymbolTable(), reporter);
+    }
+
+    // Scans with the symbols of earlier sources, like the lines of one session.
+    Scanner(String source, SymbolTable symbols, ErrorReporter reporter) {
+        this.source = source.toCharArray();
+        this.length = this.source.length;
+        this.reader = null;
+        this.symbols = symbols;
+        this.reporter = reporter;
+    }
+
+    /**
+     * Scans a script as it is read, keeping only the current lexeme and one
+     * buffer of input in memory.
+     */
+    Scanner(Reader reader, ErrorReporter reporter) {
+        this.source = new char[BUFFER_SIZE];
+        this.length = 0;
+        this.reader = reader;
+        this.symbols = new SymbolTable();
+        this.reporter = reporter;
     }
 
     List<Token> scanTokens() {
-        while (!isAtEnd()) {
+        List<Token> tokens = new ArrayList<>();
+        Token token;
+        do {
+            token = nextToken();
+            tokens.add(token);
+        } while (token.type != EOF);
+        return tokens;
+    }
+
+    // The next token, EOF at the end and every time after.
+    Token nextToken() {
+        token = null;
+        while (token == null && !isAtEnd()) {
             // We are at the beginning of the next lexeme.
             start = current;
             scanToken();
         }
-
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
+        if (token == null) token = new Token(EOF, "", null, line);
+        return token;
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return !available(current);
+    }
+
+    // Whether the character at index is there, reading more input if needed.
+    private boolean available(int index) {
+        while (index >= length) {
+            if (reader == null) return false;
+            // Everything before the current lexeme has been scanned already.
+            if (start > 0) {
+                System.arraycopy(source, start, source, 0, length - start);
+                length -= start;
+                current -= start;
+                index -= start;
+                start = 0;
+            }
+            if (length == source.length) source = Arrays.copyOf(source, source.length * 2);
+            int read;
+            try {
+                read = reader.read(source, length, source.length - length);
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+            if (read < 0) return false;
+            length += read;
+        }
+        return true;
     }
 
     private void scanToken() {
@@ -123,7 +194,7 @@ public class Scanner {
                     identifier();
                 }
                 else {
-                    FormulaR.error(line, "Невідомий символ.");
+                    reporter.error(line, "", "Невідомий символ.");
                 }
                 break;
         }
@@ -131,21 +202,24 @@ public class Scanner {
 
     private char advance() {
         current++;
-        return source.charAt(current - 1);
+        return source[current - 1];
     }
 
     private void addToken(TokenType type) {
         addToken(type, null);
     }
 
+    // Operators are interned, so most tokens allocate nothing but themselves.
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        String text = type == STRING
+                ? new String(source, start, current - start)
+                : symbols.name(symbols.find(source, start, current - start));
+        token = new Token(type, text, literal, line);
     }
 
     private boolean match(char expected) {
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
+        if (source[current] != expected) return false;
 
         current++;
         return true;
@@ -153,7 +227,7 @@ public class Scanner {
 
     private char peek() {
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return source[current];
     }
 
     private void string() {
@@ -164,7 +238,7 @@ public class Scanner {
 
         // Unterminated string.
         if (isAtEnd()) {
-            FormulaR.error(line, "Незакінчений рядок.");
+            reporter.error(line, "", "Незакінчений рядок.");
             return;
         }
 
@@ -172,7 +246,7 @@ public class Scanner {
         advance();
 
         // Trim the surrounding quotes.
-        String value = source.substring(start + 1, current - 1);
+        String value = new String(source, start + 1, current - start - 2);
         addToken(STRING, value);
     }
 
@@ -191,23 +265,24 @@ public class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+        // Numbers are not interned, a generated script can have any number of distinct ones.
+        String text = new String(source, start, current - start);
+        token = new Token(NUMBER, text, Double.parseDouble(text), line);
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        if (!available(current + 1)) return '\0';
+        return source[current + 1];
     }
 
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
 
         // See if the identifier is a reserved word.
-        String text = source.substring(start, current);
-
-        TokenType type = keywords.get(text);
+        int symbol = symbols.find(source, start, current - start);
+        TokenType type = symbols.type(symbol);
         if (type == null) type = IDENTIFIER;
-        addToken(type);
+        token = new Token(type, symbols.name(symbol), null, line);
     }
 
     private boolean isAlpha(char c) {
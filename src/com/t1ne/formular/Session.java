@@ -0,0 +1,122 @@
+package com.t1ne.formular;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+/**
+ * A run of one or more inputs against the same interpreter: a script file is
+ * one input, every line at the prompt is another. The interpreter keeps the
+ * globals, the dependency graph and the functions with their compiled code
+ * between inputs, and the session keeps the symbol table, so the names an
+ * input shares with the earlier ones are the same strings. Each input is only
+ * scanned, optimized, resolved and compiled for what it adds itself.
+ */
+class Session {
+    private final Interpreter interpreter;
+    private final VM vm;
+    private final Diagnostics diagnostics;
+    // False at the prompt, where later lines can still change the globals.
+    private final boolean wholeProgram;
+    // Where whole programs are stored optimized, null to always compile them.
+    private final ProgramCache cache;
+    private final SymbolTable symbols = new SymbolTable();
+    // Whether the input being run had a syntax error.
+    private boolean hadError = false;
+    private final ErrorReporter reporter;
+    // The flight recorder event of the phase that is running, null when not recording.
+    private FlightEvents.Phase event;
+
+    // vm is null to run the inputs in the tree-walking interpreter.
+    Session(Interpreter interpreter, VM vm, Diagnostics diagnostics, boolean wholeProgram) {
+        this(interpreter, vm, diagnostics, wholeProgram, null);
+    }
+
+    Session(Interpreter interpreter, VM vm, Diagnostics diagnostics, boolean wholeProgram, ProgramCache cache) {
+        this.interpreter = interpreter;
+        this.vm = vm;
+        this.diagnostics = diagnostics;
+        this.wholeProgram = wholeProgram;
+        this.cache = wholeProgram ? cache : null;
+        this.reporter = new ErrorReporter() {
+            @Override
+            public void error(int line, String where, String message) {
+                hadError = true;
+                interpreter.reporter.error(line, where, message);
+            }
+
+            @Override
+            public void runtimeError(RuntimeError error) {
+                interpreter.reporter.runtimeError(error);
+            }
+        };
+    }
+
+    /**
+     * Runs one input. Returns false if it had a syntax error, then nothing of
+     * it runs; runtime errors are reported and end only this input.
+     */
+    boolean run(String source) {
+        long start = System.nanoTime();
+        event = FlightEvents.beginPhase();
+        byte[] key = cache == null ? null : ProgramCache.key(source);
+        List<Stmt> optimized = key == null ? null : cache.load(key);
+        if (optimized != null) {
+            start = phase("load", start);
+            diagnostics.dump("optimized.txt", optimized);
+        } else {
+            optimized = compile(source, start);
+            if (optimized == null) return false;
+            start = System.nanoTime();
+            if (key != null) {
+                cache.store(key, optimized);
+                start = phase("store", start);
+            }
+        }
+
+        new Resolver(interpreter).resolve(optimized);
+        start = phase("resolve", start);
+        if (vm != null) {
+            vm.interpret(optimized);
+        } else {
+            interpreter.interpret(optimized);
+        }
+        phase("execute", start);
+        diagnostics.finish();
+        return true;
+    }
+
+    // Scans, parses and optimizes an input; null after a syntax error.
+    private List<Stmt> compile(String source, long start) {
+        hadError = false;
+        List<Token> tokens = new Scanner(source, symbols, reporter).scanTokens();
+        start = phase("scan", start);
+
+        List<Stmt> statements = new Parser(tokens, reporter).parse();
+        start = phase("parse", start);
+
+        // Stop if there was a syntax error.
+        if (hadError) {
+            diagnostics.finish();
+            return null;
+        }
+        diagnostics.dump("ast.txt", statements);
+        StringWriter log = diagnostics.dumps() ? new StringWriter() : null;
+        List<Stmt> optimized = new Optimizer(interpreter, wholeProgram,
+                log == null ? null : new PrintWriter(log)).optimize(statements);
+        start = phase("optimize", start);
+        if (log != null) diagnostics.dump("optimization.txt", log.toString());
+        diagnostics.dump("optimized.txt", optimized);
+        return optimized;
+    }
+
+    // Reports the phase that started at start and returns when the next one starts.
+    private long phase(String name, long start) {
+        FlightEvents.endPhase(event, name);
+        event = FlightEvents.beginPhase();
+        if (!diagnostics.timings()) return start;
+        long end = System.nanoTime();
+        diagnostics.phase(name, end - start);
+        return end;
+    }
+}
@@ -0,0 +1,31 @@
+package com.t1ne.formular;
+
+/**
+ * Type feedback states of self-specializing nodes. A node starts uninitialized,
+ * specializes on what it sees during its first executions and goes generic for
+ * good once that assumption breaks, so it can never flip back and forth.
+ */
+final class Specialization {
+    static final int UNINITIALIZED = 0;
+    // Binary and Variable nodes that have only ever seen numbers.
+    static final int DOUBLE = 1;
+    // Call nodes that have only ever called one target, or a few.
+    static final int MONOMORPHIC = 1;
+    static final int POLYMORPHIC = 2;
+    static final int GENERIC = 3;
+    // Targets a polymorphic call node caches before it goes generic.
+    static final int POLYMORPHIC_LIMIT = 4;
+
+    // Thrown when a specialized node sees a value it did not expect, carries that value.
+    @SuppressWarnings("serial")
+    static class UnexpectedResult extends RuntimeException {
+        final Object value;
+
+        UnexpectedResult(Object value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
+    private Specialization() {}
+}
@@ -24,6 +24,7 @@ abstract class Stmt {
     }
 
     final List<Stmt> statements;
+    int slots;
   }
   static class Expression extends Stmt {
     Expression(Expr expression) {
@@ -52,6 +53,10 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+    int slot;
+    int slots;
+    boolean overloads;
+    FFunction function;
   }
   static class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -70,7 +75,8 @@ abstract class Stmt {
     final Stmt elseBranch;
   }
   static class Print extends Stmt {
-    Print(Expr expression) {
+    Print(Token keyword, Expr expression) {
+      this.keyword = keyword;
       this.expression = expression;
     }
 
@@ -79,6 +85,7 @@ abstract class Stmt {
       return visitor.visitPrintStmt(this);
     }
 
+    final Token keyword;
     final Expr expression;
   }
   static class Return extends Stmt {
@@ -108,9 +115,11 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+    int slot;
   }
   static class While extends Stmt {
-    While(Expr condition, Stmt body) {
+    While(Token keyword, Expr condition, Stmt body) {
+      this.keyword = keyword;
       this.condition = condition;
       this.body = body;
     }
@@ -120,6 +129,7 @@ abstract class Stmt {
       return visitor.visitWhileStmt(this);
     }
 
+    final Token keyword;
     final Expr condition;
     final Stmt body;
   }
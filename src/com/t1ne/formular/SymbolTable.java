@@ -0,0 +1,120 @@
+package com.t1ne.formular;
+
+import java.util.Map;
+
+/**
+ * Identifiers, keywords and operators of one source, looked up straight from
+ * the scanner's buffer. Every distinct lexeme becomes one String the first
+ * time it is seen, and every token spelled the same way shares it. A symbol
+ * carries the keyword it is, so keywords aren't looked up again. Number and
+ * string literals are not kept: a generated script can have any number of
+ * distinct ones.
+ *
+ * The table holds at most LIMIT symbols. A source with more distinct names,
+ * like a huge streamed script or a long session at the prompt, starts over
+ * with the keywords: the names already handed out stay valid, later tokens
+ * just get new strings for them.
+ */
+class SymbolTable {
+    static final int LIMIT = 1 << 16;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private String[] names;
+    private int[] hashes;
+    private TokenType[] types;
+    private int size;
+
+    SymbolTable() {
+        clear();
+    }
+
+    /**
+     * Index of the symbol spelled by chars[start, start + length), added if it
+     * is new. The index is only good until the next call.
+     */
+    int find(char[] chars, int start, int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        int index = lookup(chars, start, length, hash);
+        if (names[index] != null) return index;
+
+        if (size == LIMIT) {
+            clear();
+            index = lookup(chars, start, length, hash);
+        }
+        String name = new String(chars, start, length);
+        names[index] = name;
+        hashes[index] = hash;
+        if (++size * 2 > names.length) {
+            grow();
+            index = mix(hash) & (names.length - 1);
+            while (names[index] != name) index = (index + 1) & (names.length - 1);
+        }
+        return index;
+    }
+
+    String name(int index) {
+        return names[index];
+    }
+
+    // The keyword the symbol is, or null for an identifier.
+    TokenType type(int index) {
+        return types[index];
+    }
+
+    // The slot of the symbol, or the empty slot where it goes.
+    private int lookup(char[] chars, int start, int length, int hash) {
+        int mask = names.length - 1;
+        int index = mix(hash) & mask;
+        for (String name = names[index]; name != null; name = names[index]) {
+            if (hashes[index] == hash && matches(name, chars, start, length)) return index;
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    // Drops every symbol but the keywords.
+    private void clear() {
+        names = new String[INITIAL_CAPACITY];
+        hashes = new int[INITIAL_CAPACITY];
+        types = new TokenType[INITIAL_CAPACITY];
+        size = 0;
+        for (Map.Entry<String, TokenType> keyword : Scanner.keywords.entrySet()) {
+            String name = keyword.getKey();
+            types[find(name.toCharArray(), 0, name.length())] = keyword.getValue();
+        }
+    }
+
+    private static boolean matches(String name, char[] chars, int start, int length) {
+        if (name.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != chars[start + i]) return false;
+        }
+        return true;
+    }
+
+    // Spreads the hashes of short lexemes, which differ only in the low bits.
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16) ^ (hash >>> 7);
+    }
+
+    private void grow() {
+        String[] oldNames = names;
+        int[] oldHashes = hashes;
+        TokenType[] oldTypes = types;
+        names = new String[oldNames.length * 2];
+        hashes = new int[names.length];
+        types = new TokenType[names.length];
+        int mask = names.length - 1;
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] == null) continue;
+            int index = mix(oldHashes[i]) & mask;
+            while (names[index] != null) index = (index + 1) & mask;
+            names[index] = oldNames[i];
+            hashes[index] = oldHashes[i];
+            types[index] = oldTypes[i];
+        }
+    }
+}
@@ -2,7 +2,7 @@ package com.t1ne.formular;
 
 public class Token {
     final TokenType type;
-    String lexeme;
+    final String lexeme;
     final Object literal;
     final int line;
 
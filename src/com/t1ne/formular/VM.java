@@ -0,0 +1,457 @@
+package com.t1ne.formular;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.t1ne.formular.OpCode.*;
+
+/**
+ * Stack-based backend that runs the bytecode produced by the Compiler. Shares
+ * globals, builtins and the dependency graph with the tree-walking Interpreter,
+ * so both backends can be used interchangeably.
+ */
+class VM {
+    private final Interpreter runtime;
+    private final Map<Expr, VMFunction> formulas = new IdentityHashMap<>();
+
+    // Stack slots holding a number keep it unboxed in the parallel numbers array.
+    private static final Object NUMBER = new Object();
+
+    private Object[] stack = new Object[256];
+    private double[] numbers = new double[256];
+    private int sp = 0;
+
+    private VMFunction[] frameFunctions = new VMFunction[64];
+    private int[] framePcs = new int[64];
+    private int[] frameBases = new int[64];
+    private int frameCount = 0;
+
+    VM(Interpreter runtime) {
+        this.runtime = runtime;
+    }
+
+    // Returns false if a top-level return or a runtime error ended the script early.
+    boolean interpret(List<Stmt> statements) {
+        return interpret(compile(statements));
+    }
+
+    // Compiles a resolved script once, for running it any number of times.
+    VMFunction compile(List<Stmt> statements) {
+        return Compiler.compileScript(this, statements);
+    }
+
+    boolean interpret(VMFunction script) {
+        try {
+            return call(script, new ArrayList<>()) == Compiler.END;
+        } catch (RuntimeError error) {
+            runtime.reporter.runtimeError(error);
+            return false;
+        }
+    }
+
+    Object call(VMFunction function, List<Object> arguments) {
+        ensureStack(sp + arguments.size() + 1);
+        stack[sp++] = function;
+        for (Object argument : arguments) {
+            store(stack, numbers, sp++, argument);
+        }
+        return run(arguments.size());
+    }
+
+    private Object evaluate(Expr formula) {
+        VMFunction function = formulas.get(formula);
+        if (function == null) {
+            function = Compiler.compileExpression(this, formula);
+            formulas.put(formula, function);
+        }
+        ensureStack(sp + 1);
+        stack[sp++] = function;
+        return run(0);
+    }
+
+    private void ensureStack(int size) {
+        if (size > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+            numbers = Arrays.copyOf(numbers, stack.length);
+        }
+    }
+
+    // Numbers never live on the stack as Double objects, only as NUMBER plus the raw value.
+    private static void store(Object[] stack, double[] numbers, int index, Object value) {
+        if (value instanceof Double) {
+            stack[index] = NUMBER;
+            numbers[index] = (double) value;
+        } else {
+            stack[index] = value;
+        }
+    }
+
+    private static Object load(Object[] stack, double[] numbers, int index) {
+        Object value = stack[index];
+        return value == NUMBER ? (Object) numbers[index] : value;
+    }
+
+    private void pushFrame(VMFunction function, int pc, int base) {
+        if (frameCount == frameFunctions.length) {
+            frameFunctions = Arrays.copyOf(frameFunctions, frameCount * 2);
+            framePcs = Arrays.copyOf(framePcs, frameCount * 2);
+            frameBases = Arrays.copyOf(frameBases, frameCount * 2);
+        }
+        frameFunctions[frameCount] = function;
+        framePcs[frameCount] = pc;
+        frameBases[frameCount] = base;
+        frameCount++;
+    }
+
+    // Runs the function that sits on the stack below its arguments until it returns.
+    private Object run(int argCount) {
+        int entryFrames = frameCount;
+        int entrySp = sp - argCount - 1;
+        VMFunction function = (VMFunction) stack[entrySp];
+        int fp = enter(function, sp - argCount);
+        int sp = fp + function.frameSize;
+        int pc = 0;
+        int[] code = function.chunk.code;
+        Object[] constants = function.chunk.constants;
+        Object[] stack = this.stack;
+        double[] numbers = this.numbers;
+
+        try {
+            for (;;) {
+                int op = code[pc++];
+                switch (op) {
+                    case CONSTANT:
+                        store(stack, numbers, sp++, constants[code[pc++]]);
+                        break;
+                    case NIL:
+                        stack[sp++] = null;
+                        break;
+                    case TRUE:
+                        stack[sp++] = true;
+                        break;
+                    case FALSE:
+                        stack[sp++] = false;
+                        break;
+                    case POP:
+                        sp--;
+                        break;
+                    case GET_LOCAL: {
+                        if (Metrics.ENABLED) Metrics.LOCAL_LOOKUPS.increment();
+                        int slot = fp + code[pc++];
+                        stack[sp] = stack[slot];
+                        numbers[sp++] = numbers[slot];
+                        break;
+                    }
+                    case SET_LOCAL: {
+                        int slot = fp + code[pc++];
+                        stack[slot] = stack[sp - 1];
+                        numbers[slot] = numbers[sp - 1];
+                        break;
+                    }
+                    case DEFINE_LOCAL: {
+                        int slot = fp + code[pc++];
+                        sp--;
+                        stack[slot] = stack[sp];
+                        numbers[slot] = numbers[sp];
+                        break;
+                    }
+                    case GET_GLOBAL: {
+                        if (Metrics.ENABLED) Metrics.GLOBAL_LOOKUPS.increment();
+                        Object value = runtime.globals.values[code[pc++]];
+                        if (value == Environment.UNDEFINED) throw undefined(function.chunk.tokens[pc - 2]);
+                        store(stack, numbers, sp++, value);
+                        break;
+                    }
+                    case SET_GLOBAL: {
+                        Object[] globals = runtime.globals.values;
+                        int slot = code[pc++];
+                        if (globals[slot] == Environment.UNDEFINED) throw undefined(function.chunk.tokens[pc - 2]);
+                        globals[slot] = load(stack, numbers, sp - 1);
+                        break;
+                    }
+                    case STORE_LOCAL: {
+                        int slot = fp + code[pc++];
+                        sp--;
+                        stack[slot] = stack[sp];
+                        numbers[slot] = numbers[sp];
+                        break;
+                    }
+                    case STORE_GLOBAL: {
+                        Object[] globals = runtime.globals.values;
+                        int slot = code[pc++];
+                        if (globals[slot] == Environment.UNDEFINED) throw undefined(function.chunk.tokens[pc - 2]);
+                        sp--;
+                        globals[slot] = load(stack, numbers, sp);
+                        break;
+                    }
+                    case DEFINE_GLOBAL:
+                        sp--;
+                        runtime.globals.values[code[pc++]] = load(stack, numbers, sp);
+                        break;
+                    case OVERLOAD_LOCAL: {
+                        int slot = fp + code[pc++];
+                        sp--;
+                        stack[slot] = FOverloads.declare(stack[slot], ((VMFunction) stack[sp]).name, (VMFunction) stack[sp]);
+                        break;
+                    }
+                    case OVERLOAD_GLOBAL: {
+                        Object[] globals = runtime.globals.values;
+                        int slot = code[pc++];
+                        sp--;
+                        globals[slot] = FOverloads.declare(globals[slot], ((VMFunction) stack[sp]).name, (VMFunction) stack[sp]);
+                        break;
+                    }
+                    case EQUAL:
+                    case NOT_EQUAL: {
+                        sp--;
+                        boolean equal;
+                        if (stack[sp - 1] == NUMBER && stack[sp] == NUMBER) {
+                            // Same as Double.equals, which the tree-walking interpreter uses.
+                            equal = Double.doubleToLongBits(numbers[sp - 1]) == Double.doubleToLongBits(numbers[sp]);
+                        } else {
+                            equal = Interpreter.isEqual(load(stack, numbers, sp - 1), load(stack, numbers, sp));
+                        }
+                        stack[sp - 1] = op == EQUAL ? equal : !equal;
+                        break;
+                    }
+                    case GREATER:
+                        sp--;
+                        checkNumbers(stack, numbers, sp, function.chunk.tokens[pc - 1]);
+                        stack[sp - 1] = numbers[sp - 1] > numbers[sp];
+                        break;
+                    case GREATER_EQUAL:
+                        sp--;
+                        checkNumbers(stack, numbers, sp, function.chunk.tokens[pc - 1]);
+                        stack[sp - 1] = numbers[sp - 1] >= numbers[sp];
+                        break;
+                    case LESS:
+                        sp--;
+                        checkNumbers(stack, numbers, sp, function.chunk.tokens[pc - 1]);
+                        stack[sp - 1] = numbers[sp - 1] < numbers[sp];
+                        break;
+                    case LESS_EQUAL:
+                        sp--;
+                        checkNumbers(stack, numbers, sp, function.chunk.tokens[pc - 1]);
+                        stack[sp - 1] = numbers[sp - 1] <= numbers[sp];
+                        break;
+                    case ADD:
+                        sp--;
+                        if (stack[sp - 1] == NUMBER && stack[sp] == NUMBER) {
+                            numbers[sp - 1] += numbers[sp];
+                        } else if (stack[sp - 1] instanceof String && stack[sp] instanceof String) {
+                            stack[sp - 1] = (String) stack[sp - 1] + (String) stack[sp];
+                        } else {
+                            throw new RuntimeError(function.chunk.tokens[pc - 1],
+                                    "Операндами можуть бути лише два числа або два символьних рядки.");
+                        }
+                        break;
+                    case SUBTRACT:
+                        sp--;
+                        checkNumbers(stack, numbers, sp, function.chunk.tokens[pc - 1]);
+                        numbers[sp - 1] -= numbers[sp];
+                        break;
+                    case MULTIPLY:
+                        sp--;
+                        checkNumbers(stack, numbers, sp, function.chunk.tokens[pc - 1]);
+                        numbers[sp - 1] *= numbers[sp];
+                        break;
+                    case DIVIDE:
+                        sp--;
+                        checkNumbers(stack, numbers, sp, function.chunk.tokens[pc - 1]);
+                        numbers[sp - 1] /= numbers[sp];
+                        break;
+                    case ADD_NUMBER:
+                        if (stack[sp - 1] != NUMBER) {
+                            throw new RuntimeError(function.chunk.tokens[pc - 1],
+                                    "Операндами можуть бути лише два числа або два символьних рядки.");
+                        }
+                        numbers[sp - 1] += (double) constants[code[pc++]];
+                        break;
+                    case SUBTRACT_NUMBER:
+                        checkNumber(stack, sp - 1, function.chunk.tokens[pc - 1]);
+                        numbers[sp - 1] -= (double) constants[code[pc++]];
+                        break;
+                    case MULTIPLY_NUMBER:
+                        checkNumber(stack, sp - 1, function.chunk.tokens[pc - 1]);
+                        numbers[sp - 1] *= (double) constants[code[pc++]];
+                        break;
+                    case DIVIDE_NUMBER:
+                        checkNumber(stack, sp - 1, function.chunk.tokens[pc - 1]);
+                        numbers[sp - 1] /= (double) constants[code[pc++]];
+                        break;
+                    case NOT:
+                        stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                        break;
+                    case NEGATE:
+                        if (stack[sp - 1] != NUMBER) {
+                            throw new RuntimeError(function.chunk.tokens[pc - 1], "Операнд повинен бути числом.");
+                        }
+                        numbers[sp - 1] = -numbers[sp - 1];
+                        break;
+                    case PRINT:
+                        sp--;
+                        runtime.out.println(Interpreter.stringify(load(stack, numbers, sp)));
+                        break;
+                    case JUMP:
+                        pc = code[pc];
+                        break;
+                    case JUMP_IF_FALSE:
+                        if (!Interpreter.isTruthy(stack[--sp])) {
+                            pc = code[pc];
+                        } else {
+                            pc++;
+                        }
+                        break;
+                    case JUMP_UNLESS_GREATER:
+                        sp -= 2;
+                        checkNumbers(stack, numbers, sp + 1, function.chunk.tokens[pc - 1]);
+                        pc = numbers[sp] > numbers[sp + 1] ? pc + 1 : code[pc];
+                        break;
+                    case JUMP_UNLESS_GREATER_EQUAL:
+                        sp -= 2;
+                        checkNumbers(stack, numbers, sp + 1, function.chunk.tokens[pc - 1]);
+                        pc = numbers[sp] >= numbers[sp + 1] ? pc + 1 : code[pc];
+                        break;
+                    case JUMP_UNLESS_LESS:
+                        sp -= 2;
+                        checkNumbers(stack, numbers, sp + 1, function.chunk.tokens[pc - 1]);
+                        pc = numbers[sp] < numbers[sp + 1] ? pc + 1 : code[pc];
+                        break;
+                    case JUMP_UNLESS_LESS_EQUAL:
+                        sp -= 2;
+                        checkNumbers(stack, numbers, sp + 1, function.chunk.tokens[pc - 1]);
+                        pc = numbers[sp] <= numbers[sp + 1] ? pc + 1 : code[pc];
+                        break;
+                    case CALL: {
+                        int count = code[pc++];
+                        Object callee = stack[sp - count - 1];
+                        Token paren = function.chunk.tokens[pc - 2];
+                        FCallable target = Interpreter.callable(callee, count, paren);
+                        if (Metrics.ENABLED) Metrics.call(target);
+                        if (target instanceof VMFunction) {
+                            pushFrame(function, pc, fp);
+                            function = (VMFunction) target;
+                            fp = enter(function, sp - count);
+                            stack = this.stack;
+                            numbers = this.numbers;
+                            sp = fp + function.frameSize;
+                            pc = 0;
+                            code = function.chunk.code;
+                            constants = function.chunk.constants;
+                        } else {
+                            this.sp = sp;
+                            Object result;
+                            switch (count) {
+                                case 0:
+                                    result = target.call0(runtime);
+                                    break;
+                                case 1:
+                                    result = target.call1(runtime, load(stack, numbers, sp - 1));
+                                    break;
+                                case 2:
+                                    result = target.call2(runtime, load(stack, numbers, sp - 2), load(stack, numbers, sp - 1));
+                                    break;
+                                default:
+                                    List<Object> arguments = new ArrayList<>(count);
+                                    for (int i = sp - count; i < sp; i++) {
+                                        arguments.add(load(stack, numbers, i));
+                                    }
+                                    result = target.call(runtime, arguments);
+                            }
+                            stack = this.stack;
+                            numbers = this.numbers;
+                            sp -= count;
+                            store(stack, numbers, sp - 1, result);
+                        }
+                        break;
+                    }
+                    case RETURN: {
+                        sp--;
+                        // The callee sits right below the first argument.
+                        stack[fp - 1] = stack[sp];
+                        numbers[fp - 1] = numbers[sp];
+                        sp = fp;
+                        if (frameCount == entryFrames) {
+                            this.sp = entrySp;
+                            return load(stack, numbers, entrySp);
+                        }
+                        frameCount--;
+                        function = frameFunctions[frameCount];
+                        pc = framePcs[frameCount];
+                        fp = frameBases[frameCount];
+                        frameFunctions[frameCount] = null;
+                        code = function.chunk.code;
+                        constants = function.chunk.constants;
+                        break;
+                    }
+                    case REACT: {
+                        Stmt statement = (Stmt) constants[code[pc++]];
+                        this.sp = sp;
+                        react(statement);
+                        stack = this.stack;
+                        numbers = this.numbers;
+                        break;
+                    }
+                    default:
+                        throw new IllegalStateException("Unknown opcode " + op);
+                }
+            }
+        } catch (RuntimeException error) {
+            frameCount = entryFrames;
+            this.sp = entrySp;
+            throw error;
+        }
+    }
+
+    private static void checkNumber(Object[] stack, int left, Token operator) {
+        if (stack[left] != NUMBER) throw new RuntimeError(operator, "Операнди повинні бути числами.");
+    }
+
+    private static void checkNumbers(Object[] stack, double[] numbers, int right, Token operator) {
+        if (stack[right - 1] != NUMBER || stack[right] != NUMBER) {
+            Interpreter.checkNumberOperands(operator, load(stack, numbers, right - 1), load(stack, numbers, right));
+        }
+    }
+
+    // Makes room for the frame of a function whose arguments start at base.
+    private int enter(VMFunction function, int base) {
+        ensureStack(base + function.frameSize + function.maxStack);
+        Arrays.fill(stack, base + function.arity, base + function.frameSize, null);
+        return base;
+    }
+
+    private void react(Stmt statement) {
+        Token name;
+        int slot;
+        Expr formula;
+        if (statement instanceof Stmt.Var) {
+            name = ((Stmt.Var) statement).name;
+            slot = ((Stmt.Var) statement).slot;
+            formula = ((Stmt.Var) statement).initializer;
+        } else {
+            Expr.Assign assign = (Expr.Assign) ((Stmt.Expression) statement).expression;
+            name = assign.name;
+            slot = assign.slot;
+            formula = assign.value;
+        }
+        List<DependencyGraph.Node> affected = runtime.dependencies.update(slot, formula);
+        if (affected.isEmpty()) return;
+        if (Metrics.ENABLED) Metrics.RECOMPUTATIONS.add(affected.size());
+        FlightEvents.Recompute event = FlightEvents.beginRecompute();
+        // Waves that can run in parallel run in the tree-walking interpreter.
+        boolean parallel = ParallelUpdate.recompute(runtime, affected);
+        if (!parallel) {
+            for (DependencyGraph.Node dependent : affected) {
+                runtime.globals.values[dependent.slot] = evaluate(dependent.formula);
+            }
+        }
+        FlightEvents.endRecompute(event, name, affected.size(), parallel);
+    }
+
+    private RuntimeError undefined(Token name) {
+        return new RuntimeError(name, "Нерозпізнана змінна '" + name.lexeme + "'.");
+    }
+}
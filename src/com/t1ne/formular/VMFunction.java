@@ -0,0 +1,39 @@
+package com.t1ne.formular;
+
+import java.util.List;
+
+class VMFunction implements FCallable {
+    final String name;
+    // The source of a compiled function, null for scripts and formulas.
+    final Stmt.Function declaration;
+    final int arity;
+    final Chunk chunk;
+    final int frameSize;
+    final int maxStack;
+    private final VM vm;
+
+    VMFunction(VM vm, String name, Stmt.Function declaration, int arity, Chunk chunk, int frameSize, int maxStack) {
+        this.vm = vm;
+        this.name = name;
+        this.declaration = declaration;
+        this.arity = arity;
+        this.chunk = chunk;
+        this.frameSize = frameSize;
+        this.maxStack = maxStack;
+    }
+
+    @Override
+    public int argsNum() {
+        return arity;
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + name + ">";
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return vm.call(this, arguments);
+    }
+}
@@ -14,23 +14,23 @@ public class GenerateAst {
         }
         String outputDir = args[0];
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign   : Token name, Expr value",
-                "Binary   : Expr left, Token operator, Expr right",
-                "Call     : Expr callee, Token paren, List<Expr> arguments",
+                "Assign   : Token name, Expr value ; int depth, int slot",
+                "Binary   : Expr left, Token operator, Expr right ; boolean numeric, int state",
+                "Call     : Expr callee, Token paren, List<Expr> arguments ; int state, int epoch, Object[] cache",
                 "Grouping : Expr expression",
                 "Literal  : Object value",
                 "Unary    : Token operator, Expr right",
-                "Variable : Token name"
+                "Variable : Token name ; int depth, int slot, int state"
         ));
         defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
+                "Block      : List<Stmt> statements ; int slots",
                 "Expression : Expr expression",
-                "Function   : Token name, List<Token> params, List<Stmt> body",
+                "Function   : Token name, List<Token> params, List<Stmt> body ; int slot, int slots, boolean overloads, FFunction function",
                 "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
-                "Print      : Expr expression",
+                "Print      : Token keyword, Expr expression",
                 "Return     : Token keyword, Expr value",
-                "Var        : Token name, Expr initializer",
-                "While      : Expr condition, Stmt body"
+                "Var        : Token name, Expr initializer ; int slot",
+                "While      : Token keyword, Expr condition, Stmt body"
         ));
     }
 
@@ -47,7 +47,14 @@ public class GenerateAst {
         for (String type : types) {
             String className = type.split(":")[0].trim();
             String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            // Fields after ';' are not part of the constructor, they are filled in later by the
+            // Resolver or by the Interpreter when a node specializes itself.
+            String resolved = "";
+            if (fields.contains(";")) {
+                resolved = fields.split(";")[1].trim();
+                fields = fields.split(";")[0].trim();
+            }
+            defineType(writer, baseName, className, fields, resolved);
         }
         // The base accept() method.
         writer.println();
@@ -58,7 +65,7 @@ public class GenerateAst {
     }
     private static void defineType(
             PrintWriter writer, String baseName,
-            String className, String fieldList) {
+            String className, String fieldList, String resolvedList) {
         writer.println("  static class " + className + " extends " +
                 baseName + " {");
 
@@ -84,6 +91,11 @@ public class GenerateAst {
         for (String field : fields) {
             writer.println("    final " + field + ";");
         }
+        if (!resolvedList.isEmpty()) {
+            for (String field : resolvedList.split(", ")) {
+                writer.println("    " + field + ";");
+            }
+        }
 
         writer.println("  }");
     }